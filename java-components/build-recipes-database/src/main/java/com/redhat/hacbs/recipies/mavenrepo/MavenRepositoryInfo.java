@@ -8,6 +8,11 @@ public class MavenRepositoryInfo {
 
     private List<String> repositories;
 
+    /**
+     * The groups the repository hosts, if this is set then the cache will not ask it for any other groups
+     */
+    private List<String> groupPrefixes;
+
     public String getUri() {
         return uri;
     }
@@ -25,4 +30,13 @@ public class MavenRepositoryInfo {
         this.repositories = repositories;
         return this;
     }
+
+    public List<String> getGroupPrefixes() {
+        return groupPrefixes;
+    }
+
+    public MavenRepositoryInfo setGroupPrefixes(List<String> groupPrefixes) {
+        this.groupPrefixes = groupPrefixes;
+        return this;
+    }
 }
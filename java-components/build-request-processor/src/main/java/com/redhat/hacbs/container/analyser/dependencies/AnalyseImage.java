@@ -1,13 +1,21 @@
 package com.redhat.hacbs.container.analyser.dependencies;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
@@ -33,6 +41,7 @@ import com.google.cloud.tools.jib.registry.RegistryClient;
 import com.google.cloud.tools.jib.registry.credentials.CredentialRetrievalException;
 import com.redhat.hacbs.classfile.tracker.NoCloseInputStream;
 import com.redhat.hacbs.classfile.tracker.TrackingData;
+import com.redhat.hacbs.resources.util.BlobPipe;
 
 import io.quarkus.logging.Log;
 import picocli.CommandLine;
@@ -41,12 +50,23 @@ import picocli.CommandLine;
 @Singleton
 public class AnalyseImage extends AnalyserBase {
 
+    /**
+     * Entries larger than this are scanned on the layer thread, rather than being read into memory
+     */
+    private static final long MAX_BUFFERED_ENTRY_SIZE = 64 * 1024 * 1024;
+
     @CommandLine.Parameters(index = "0")
     String image;
 
     @CommandLine.Option(names = { "--base-image", "-b" }, required = false)
     Optional<String> baseImage;
 
+    /**
+     * A directory that the results for each layer are cached in, so layers that have been seen before are not scanned again
+     */
+    @CommandLine.Option(names = "--layer-cache")
+    Optional<Path> layerCache;
+
     @Inject
     RebuildService rebuild;
 
@@ -59,24 +79,88 @@ public class AnalyseImage extends AnalyserBase {
             extractLayers(baseImage.get(), layersToProcess::remove);
         }
         Log.infof("Processing layers to extract: %s", layersToProcess);
-        for (var layer : layersToProcess) {
-            var blob = client.pullBlob(layer, s -> {
-            }, s -> {
-            });
-            Path targetFile = Files.createTempFile("layer", "layer");
-
-            try (OutputStream out = Files.newOutputStream(targetFile)) {
-                blob.writeTo(out);
+        long start = System.currentTimeMillis();
+        AtomicLong extractTime = new AtomicLong();
+        LayerCache cache = layerCache.map(LayerCache::new).orElse(null);
+        Map<DescriptorDigest, Set<TrackingData>> scanned = new HashMap<>();
+        Set<DescriptorDigest> failedLayers = ConcurrentHashMap.newKeySet();
+        ParallelScanner scanner = new ParallelScanner(gavs, continueOnError);
+        //layers are downloaded and extracted concurrently, and the files in them are scanned on the scanner threads
+        int layerThreads = Math.max(1, Math.min(threads, layersToProcess.size()));
+        ExecutorService layerExecutor = Executors.newFixedThreadPool(layerThreads);
+        //each layer being extracted has one blob writer, so this never needs to queue
+        ExecutorService blobWriters = Executors.newFixedThreadPool(layerThreads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (var layer : layersToProcess) {
+                if (cache != null) {
+                    var cached = cache.get(layer);
+                    if (cached.isPresent()) {
+                        Log.debugf("Using cached results for layer %s", layer.getHash());
+                        addTrackingData("layer " + layer.getHash(), cached.get(), trackingData, gavs);
+                        continue;
+                    }
+                }
+                Set<TrackingData> layerData = ConcurrentHashMap.newKeySet();
+                scanned.put(layer, layerData);
+                results.add(layerExecutor.submit(() -> {
+                    processLayer(client, layer, blobWriters, scanner, layerData, extractTime,
+                            () -> failedLayers.add(layer));
+                    return null;
+                }));
             }
-            try (InputStream in = Files.newInputStream(targetFile)) {
-                GZIPInputStream inputStream = new GZIPInputStream(in);
-                TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(inputStream);
-                for (TarArchiveEntry entry = tarArchiveInputStream
-                        .getNextTarEntry(); entry != null; entry = tarArchiveInputStream.getNextTarEntry()) {
-                    Log.debugf("Processing %s from layer %s", entry.getName(), layer.getHash());
-                    handleFile(entry.getName(), new NoCloseInputStream(tarArchiveInputStream), trackingData, gavs);
+            for (var result : results) {
+                result.get();
+            }
+        } finally {
+            layerExecutor.shutdownNow();
+            blobWriters.shutdownNow();
+            scanner.await();
+        }
+        for (var e : scanned.entrySet()) {
+            trackingData.addAll(e.getValue());
+            if (cache != null) {
+                if (failedLayers.contains(e.getKey())) {
+                    //the results are incomplete, so the layer needs to be scanned again next time
+                    Log.warnf("Not caching results for layer %s as some files could not be analysed", e.getKey().getHash());
+                } else {
+                    cache.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        Log.infof("Analysed %s layers (%s cached) in %sms, time spent downloading and extracting %sms and scanning %sms",
+                layersToProcess.size(), layersToProcess.size() - scanned.size(), System.currentTimeMillis() - start,
+                extractTime.get(), scanner.getScanTimeMillis());
+    }
+
+    private void processLayer(RegistryClient client, DescriptorDigest layer, Executor blobWriters,
+            ParallelScanner scanner, Set<TrackingData> layerData, AtomicLong extractTime, Runnable failed)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        var blob = client.pullBlob(layer, s -> {
+        }, s -> {
+        });
+        //the blob is decompressed as it is downloaded, rather than being written to disk first
+        try (BlobPipe in = BlobPipe.open(blobWriters, blob::writeTo, layer.getHash())) {
+            GZIPInputStream inputStream = new GZIPInputStream(in);
+            TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(inputStream);
+            for (TarArchiveEntry entry = tarArchiveInputStream
+                    .getNextTarEntry(); entry != null; entry = tarArchiveInputStream.getNextTarEntry()) {
+                if (!entry.isFile() || !mayContainClasses(entry.getName())) {
+                    continue;
+                }
+                Log.debugf("Processing %s from layer %s", entry.getName(), layer.getHash());
+                if (entry.getSize() > MAX_BUFFERED_ENTRY_SIZE) {
+                    scanner.scan(entry.getName(), new NoCloseInputStream(tarArchiveInputStream), layerData, failed);
+                } else {
+                    byte[] contents = tarArchiveInputStream.readAllBytes();
+                    scanner.submit(entry.getName(), () -> new ByteArrayInputStream(contents), layerData, failed);
                 }
             }
+            //the tar and gzip readers stop at the end of their own data, so check the whole blob arrived and matched its digest
+            in.verify();
+        } finally {
+            extractTime.addAndGet(System.currentTimeMillis() - start);
         }
     }
 
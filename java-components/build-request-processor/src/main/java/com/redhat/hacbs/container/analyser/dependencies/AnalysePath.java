@@ -23,23 +23,37 @@ public class AnalysePath extends AnalyserBase implements Runnable {
     @CommandLine.Parameters
     List<Path> paths;
 
-    void doAnalysis(Set<String> gavs, Set<TrackingData> trackingData) throws IOException {
+    void doAnalysis(Set<String> gavs, Set<TrackingData> trackingData) throws IOException, InterruptedException {
         Log.infof("Root paths %s", paths);
+        long start = System.currentTimeMillis();
+        //unreadable files have always been skipped when analysing paths
+        ParallelScanner scanner = new ParallelScanner(gavs, true);
+        try {
+            walk(scanner, trackingData);
+        } finally {
+            scanner.await();
+        }
+        Log.infof("Analysed %s in %sms, time spent scanning %sms", paths, System.currentTimeMillis() - start,
+                scanner.getScanTimeMillis());
+    }
+
+    private void walk(ParallelScanner scanner, Set<TrackingData> trackingData) throws IOException {
         for (var path : paths) {
             Files.walkFileTree(path, new SimpleFileVisitor<>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    if (!Files.exists(file)) {
+                    if (!Files.exists(file) || !mayContainClasses(file.getFileName().toString())) {
                         //if we have a symlink that points to nothing
                         //just ignore it
                         return FileVisitResult.CONTINUE;
                     }
                     try {
-                        return handleFile(file.getFileName().toString(), Files.newInputStream(file), trackingData, gavs);
-                    } catch (Exception e) {
-                        Log.errorf(e, "Failed to analyse %s", file);
-                        return FileVisitResult.CONTINUE;
+                        scanner.submit(file.getFileName().toString(), () -> Files.newInputStream(file), trackingData);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
                     }
+                    return FileVisitResult.CONTINUE;
                 }
             });
         }
@@ -7,9 +7,17 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jakarta.inject.Inject;
 
@@ -50,11 +58,21 @@ public abstract class AnalyserBase implements Runnable {
     @CommandLine.Option(names = "--publishers")
     Path publishers;
 
+    @CommandLine.Option(names = "--threads")
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * If a file that can't be scanned should just be logged, rather than failing the analysis
+     */
+    @CommandLine.Option(names = "--continue-on-error")
+    boolean continueOnError;
+
     @Override
     public void run() {
         try {
-            Set<String> gavs = new HashSet<>();
-            Set<TrackingData> trackingData = new HashSet<>();
+            //these are added to from multiple threads
+            Set<String> gavs = ConcurrentHashMap.newKeySet();
+            Set<TrackingData> trackingData = ConcurrentHashMap.newKeySet();
             doAnalysis(gavs, trackingData);
             rebuild.rebuild(taskRunName, gavs);
             writeResults(gavs, trackingData);
@@ -113,16 +131,166 @@ public abstract class AnalyserBase implements Runnable {
             throws IOException {
         Log.debugf("Processing %s", fileName);
         var jarData = ClassFileTracker.readTrackingDataFromFile(contents, fileName);
-        trackingData.addAll(jarData);
-        for (var data : jarData) {
+        addTrackingData(fileName, jarData, trackingData, gavs);
+        return FileVisitResult.CONTINUE;
+    }
+
+    void addTrackingData(String location, Set<TrackingData> found, Set<TrackingData> trackingData, Set<String> gavs) {
+        trackingData.addAll(found);
+        for (var data : found) {
             if (data != null) {
                 if (!allowedSources.contains(data.source)) {
-                    Log.debugf("Found GAV %s in %s", data.gav, fileName);
+                    Log.debugf("Found GAV %s in %s", data.gav, location);
                     gavs.add(data.gav);
                 }
             }
         }
-        return FileVisitResult.CONTINUE;
     }
 
+    /**
+     * Returns true if the file may contain class files, so it needs to be scanned.
+     */
+    static boolean mayContainClasses(String fileName) {
+        return fileName.endsWith(".class") || fileName.endsWith(".jar") || fileName.endsWith(".zip")
+                || fileName.endsWith(".tar") || fileName.endsWith(".tgz") || fileName.endsWith(".tar.gz");
+    }
+
+    interface FileContents {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Scans files on a pool of threads and records the results in the provided sets.
+     * <p>
+     * Only a limited number of files can be waiting to be scanned, once that is reached
+     * {@link #submit(String, FileContents, Set)} will block, so files read into memory do not pile up faster than they can be
+     * scanned.
+     * <p>
+     * If a file fails to scan then the analysis fails, unless the scanner was created to continue on errors, in which case
+     * the failure is logged and the file is skipped.
+     */
+    final class ParallelScanner {
+
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final int maxPending;
+        private final Set<String> gavs;
+        private final boolean continueOnError;
+        private final AtomicLong scanTime = new AtomicLong();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        ParallelScanner(Set<String> gavs, boolean continueOnError) {
+            this.gavs = gavs;
+            this.continueOnError = continueOnError;
+            int count = Math.max(1, threads);
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(count, r -> {
+                Thread thread = new Thread(r, "scanner-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            maxPending = count * 2;
+            permits = new Semaphore(maxPending);
+        }
+
+        /**
+         * Submits a file to be scanned.
+         *
+         * @throws IOException if a file that was submitted earlier has failed to scan, and errors do not allow the analysis
+         *         to continue
+         */
+        void submit(String fileName, FileContents contents, Set<TrackingData> trackingData)
+                throws InterruptedException, IOException {
+            submit(fileName, contents, trackingData, () -> {
+            });
+        }
+
+        /**
+         * Submits a file to be scanned, running the callback if it fails.
+         */
+        void submit(String fileName, FileContents contents, Set<TrackingData> trackingData, Runnable failed)
+                throws InterruptedException, IOException {
+            checkFailure();
+            permits.acquire();
+            try {
+                executor.execute(() -> {
+                    try (InputStream in = contents.open()) {
+                        timedScan(fileName, in, trackingData);
+                    } catch (Exception e) {
+                        recordFailure(fileName, e, failed);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Scans a file on the calling thread, for files that are too big to buffer. Failures are handled in the same way
+         * as for submitted files.
+         *
+         * @throws IOException if the file failed to scan, and errors do not allow the analysis to continue
+         */
+        void scan(String fileName, InputStream contents, Set<TrackingData> trackingData, Runnable failed)
+                throws IOException {
+            try {
+                timedScan(fileName, contents, trackingData);
+            } catch (Exception e) {
+                recordFailure(fileName, e, failed);
+            }
+            checkFailure();
+        }
+
+        private void timedScan(String fileName, InputStream contents, Set<TrackingData> trackingData) throws IOException {
+            long start = System.nanoTime();
+            try {
+                handleFile(fileName, contents, trackingData, gavs);
+            } finally {
+                scanTime.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Waits for all the submitted files to be scanned, and shuts down the pool.
+         *
+         * @throws IOException if a file failed to scan, and errors do not allow the analysis to continue
+         */
+        void await() throws InterruptedException, IOException {
+            try {
+                permits.acquire(maxPending);
+                permits.release(maxPending);
+            } finally {
+                executor.shutdown();
+            }
+            if (failures.get() > 0) {
+                Log.warnf("%s files could not be analysed", failures.get());
+            }
+            checkFailure();
+        }
+
+        private void recordFailure(String fileName, Exception e, Runnable failed) {
+            failures.incrementAndGet();
+            failed.run();
+            Log.errorf(e, "Failed to analyse %s", fileName);
+            failure.compareAndSet(null, new IOException("Failed to analyse " + fileName, e));
+        }
+
+        private void checkFailure() throws IOException {
+            IOException e = failure.get();
+            if (e != null && !continueOnError) {
+                throw e;
+            }
+        }
+
+        /**
+         * The time spent scanning, summed across all threads
+         */
+        long getScanTimeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(scanTime.get());
+        }
+    }
 }
@@ -0,0 +1,80 @@
+package com.redhat.hacbs.container.analyser.dependencies;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.cloud.tools.jib.api.DescriptorDigest;
+import com.redhat.hacbs.classfile.tracker.TrackingData;
+
+import io.quarkus.logging.Log;
+
+/**
+ * A cache of the tracking data found in image layers, keyed by the layer digest.
+ * <p>
+ * Layers are content addressed, so the results for a layer never change. Base and application layers are shared by lots
+ * of images, so with this cache only the layers that have not been seen before need to be downloaded and scanned.
+ * <p>
+ * The results are stored under the {@link #SCANNER_VERSION}, so they are not reused once the scanning changes. Layers
+ * that had files that could not be scanned are never cached, as their results are incomplete.
+ */
+class LayerCache {
+
+    /**
+     * Must be incremented whenever a change to the scanning could change the results for a layer
+     */
+    static final int SCANNER_VERSION = 1;
+
+    private final Path directory;
+
+    LayerCache(Path directory) {
+        this.directory = directory.resolve("v" + SCANNER_VERSION);
+    }
+
+    Optional<Set<TrackingData>> get(DescriptorDigest layer) {
+        Path file = file(layer);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            List<Entry> entries = AnalyserBase.MAPPER.readValue(file.toFile(), new TypeReference<>() {
+            });
+            Set<TrackingData> ret = new HashSet<>();
+            for (var i : entries) {
+                ret.add(new TrackingData(i.gav(), i.source(), i.attributes()));
+            }
+            return Optional.of(ret);
+        } catch (IOException e) {
+            //it will just be scanned again
+            Log.errorf(e, "Failed to read cached results for layer %s", layer.getHash());
+            return Optional.empty();
+        }
+    }
+
+    void put(DescriptorDigest layer, Set<TrackingData> trackingData) {
+        Path file = file(layer);
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, layer.getHash(), ".tmp");
+            AnalyserBase.MAPPER.writeValue(temp.toFile(),
+                    trackingData.stream().map(i -> new Entry(i.gav, i.source, i.getAttributes())).toList());
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to cache results for layer %s", layer.getHash());
+        }
+    }
+
+    private Path file(DescriptorDigest layer) {
+        return directory.resolve(layer.getHash() + ".json");
+    }
+
+    record Entry(String gav, String source, Map<String, String> attributes) {
+    }
+}
@@ -156,7 +156,7 @@ public class DeployCommand implements Runnable {
                     try {
                         String fileName = file.getFileName().toString();
                         Path temp = file.getParent().resolve(fileName + ".temp");
-                        ClassFileTracker.addTrackingDataToJar(Files.newInputStream(file),
+                        ClassFileTracker.addTrackingDataToJar(file,
                                 new TrackingData(
                                         gav.getGroupId() + ":" + gav.getArtifactId() + ":"
                                                 + gav.getVersion(),
@@ -0,0 +1,167 @@
+package com.redhat.hacbs.artifactcache.artifactwatch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact set of GAVs.
+ * <p>
+ * The GAVs are stored as a map of group to artifact to versions, so each group and artifact id is only stored once no
+ * matter how many versions have been rebuilt. The versions are held in a small array that is replaced when it is
+ * modified, which means lookups never lock.
+ */
+final class GavIndex {
+
+    private static final String[] NO_VERSIONS = new String[0];
+
+    private final ConcurrentMap<String, ConcurrentMap<String, String[]>> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    boolean contains(String gav) {
+        int first = gav.indexOf(':');
+        int last = gav.lastIndexOf(':');
+        var artifacts = groups.get(group(gav, first, last));
+        if (artifacts == null) {
+            return false;
+        }
+        String[] versions = artifacts.get(artifact(gav, first, last));
+        if (versions == null) {
+            return false;
+        }
+        int versionStart = versionStart(first, last);
+        int versionLength = gav.length() - versionStart;
+        for (String version : versions) {
+            if (version.length() == versionLength && gav.startsWith(version, versionStart)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean add(String gav) {
+        int first = gav.indexOf(':');
+        int last = gav.lastIndexOf(':');
+        String version = gav.substring(versionStart(first, last));
+        boolean[] added = new boolean[1];
+        groups.compute(group(gav, first, last), (group, artifacts) -> {
+            if (artifacts == null) {
+                artifacts = new ConcurrentHashMap<>(4);
+            }
+            artifacts.compute(artifact(gav, first, last), (artifact, versions) -> {
+                if (versions == null) {
+                    versions = NO_VERSIONS;
+                }
+                for (String existing : versions) {
+                    if (existing.equals(version)) {
+                        return versions;
+                    }
+                }
+                String[] result = Arrays.copyOf(versions, versions.length + 1);
+                result[versions.length] = version;
+                added[0] = true;
+                return result;
+            });
+            return artifacts;
+        });
+        if (added[0]) {
+            size.incrementAndGet();
+        }
+        return added[0];
+    }
+
+    boolean remove(String gav) {
+        int first = gav.indexOf(':');
+        int last = gav.lastIndexOf(':');
+        String version = gav.substring(versionStart(first, last));
+        boolean[] removed = new boolean[1];
+        groups.computeIfPresent(group(gav, first, last), (group, artifacts) -> {
+            artifacts.computeIfPresent(artifact(gav, first, last), (artifact, versions) -> {
+                for (int i = 0; i < versions.length; ++i) {
+                    if (versions[i].equals(version)) {
+                        removed[0] = true;
+                        if (versions.length == 1) {
+                            return null;
+                        }
+                        String[] result = new String[versions.length - 1];
+                        System.arraycopy(versions, 0, result, 0, i);
+                        System.arraycopy(versions, i + 1, result, i, result.length - i);
+                        return result;
+                    }
+                }
+                return versions;
+            });
+            return artifacts.isEmpty() ? null : artifacts;
+        });
+        if (removed[0]) {
+            size.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Writes the GAVs to a file, one per line. The file is replaced atomically so a partially written snapshot is never
+     * read.
+     */
+    void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (var group : groups.entrySet()) {
+                for (var artifact : group.getValue().entrySet()) {
+                    for (String version : artifact.getValue()) {
+                        out.write(toGav(group.getKey(), artifact.getKey(), version));
+                        out.write('\n');
+                    }
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static GavIndex load(Path file) throws IOException {
+        GavIndex index = new GavIndex();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    index.add(line);
+                }
+            }
+        }
+        return index;
+    }
+
+    //anything that is not in group:artifact:version form is stored as a version with an empty group and artifact
+
+    private static String group(String gav, int first, int last) {
+        return first == last ? "" : gav.substring(0, first);
+    }
+
+    private static String artifact(String gav, int first, int last) {
+        return first == last ? "" : gav.substring(first + 1, last);
+    }
+
+    private static int versionStart(int first, int last) {
+        return first == last ? 0 : last + 1;
+    }
+
+    private static String toGav(String group, String artifact, String version) {
+        if (group.isEmpty() && artifact.isEmpty()) {
+            return version;
+        }
+        return group + ":" + artifact + ":" + version;
+    }
+}
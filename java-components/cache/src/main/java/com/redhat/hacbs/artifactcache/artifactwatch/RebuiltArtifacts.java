@@ -1,13 +1,15 @@
 package com.redhat.hacbs.artifactcache.artifactwatch;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -17,21 +19,45 @@ import com.redhat.hacbs.resources.model.v1alpha1.RebuiltArtifact;
 
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import io.fabric8.kubernetes.client.informers.cache.ReducedStateItemStore;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.LaunchMode;
 
+/**
+ * Tracks the GAVs of all the artifacts that have been rebuilt.
+ * <p>
+ * There can be a very large number of RebuiltArtifact objects, so the informer only keeps the fields we need in its
+ * cache, and the initial list is paged. The GAVs are saved to a snapshot file once the informer has synced and on
+ * shutdown, and on startup the snapshot is used to answer {@link #isPossiblyRebuilt(String)} until the informer has
+ * finished its initial list.
+ */
 @ApplicationScoped
 public class RebuiltArtifacts {
 
+    private static final String SNAPSHOT = ".rebuilt-artifacts";
+    private static final long LIST_PAGE_SIZE = 500;
+
     @Inject
     KubernetesClient client;
 
     @ConfigProperty(name = "kube.disabled", defaultValue = "false")
     boolean disabled;
 
+    @ConfigProperty(name = "cache-path")
+    Path cachePath;
+
     final List<Consumer<String>> imageDeletionListeners = Collections.synchronizedList(new ArrayList<>());
+    final List<Consumer<String>> artifactAddedListeners = Collections.synchronizedList(new ArrayList<>());
+
+    final GavIndex gavs = new GavIndex();
+
+    /**
+     * The GAVs from the last snapshot, only present until the informer has synced.
+     */
+    volatile GavIndex snapshot;
 
-    final Set<String> gavs = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    SharedIndexInformer<RebuiltArtifact> informer;
 
     @PostConstruct
     void setup() {
@@ -41,12 +67,17 @@ public class RebuiltArtifacts {
             Log.warnf("Kubernetes client disabled so unable to initiate RebuiltArtifacts");
             return;
         }
+        loadSnapshot();
 
-        client.resources(RebuiltArtifact.class).inform().addEventHandler(new ResourceEventHandler<RebuiltArtifact>() {
+        informer = client.resources(RebuiltArtifact.class).withLimit(LIST_PAGE_SIZE).runnableInformer(0);
+        informer.itemStore(new ReducedStateItemStore<>(ReducedStateItemStore.NAME_KEY_STATE, RebuiltArtifact.class,
+                client.getKubernetesSerialization(), "spec.gav", "spec.image"));
+        informer.addEventHandler(new ResourceEventHandler<RebuiltArtifact>() {
             @Override
             public void onAdd(RebuiltArtifact artifactBuild) {
                 Log.debugf("Adding new RebuiltArtifact %s", artifactBuild.getSpec().getGav());
                 gavs.add(artifactBuild.getSpec().getGav());
+                notifyArtifactAdded(artifactBuild.getSpec().getGav());
             }
 
             @Override
@@ -64,6 +95,7 @@ public class RebuiltArtifacts {
                 }
                 Log.infof("Adding updated RebuiltArtifact %s", newObj.getSpec().getGav());
                 gavs.add(newObj.getSpec().getGav());
+                notifyArtifactAdded(newObj.getSpec().getGav());
             }
 
             @Override
@@ -84,14 +116,80 @@ public class RebuiltArtifacts {
                 }
             }
         });
+        informer.start().whenComplete((v, t) -> {
+            if (t != null) {
+                Log.errorf(t, "Failed to start RebuiltArtifact informer");
+                return;
+            }
+            Log.infof("Loaded %s RebuiltArtifacts", gavs.size());
+            snapshot = null;
+            saveSnapshot();
+        });
+    }
+
+    @PreDestroy
+    void destroy() {
+        if (informer != null) {
+            informer.stop();
+            if (informer.hasSynced()) {
+                saveSnapshot();
+            }
+        }
+    }
+
+    private void loadSnapshot() {
+        Path file = cachePath.resolve(SNAPSHOT);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            snapshot = GavIndex.load(file);
+            Log.infof("Loaded %s GAVs from the RebuiltArtifacts snapshot", snapshot.size());
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to load RebuiltArtifacts snapshot %s", file);
+        }
+    }
+
+    private void saveSnapshot() {
+        Path file = cachePath.resolve(SNAPSHOT);
+        try {
+            gavs.save(file);
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to save RebuiltArtifacts snapshot %s", file);
+        }
     }
 
     public void addImageDeletionListener(Consumer<String> listener) {
         imageDeletionListeners.add(listener);
     }
 
+    /**
+     * Adds a listener that is notified with the GAV of every artifact that is added or updated.
+     */
+    public void addArtifactAddedListener(Consumer<String> listener) {
+        artifactAddedListeners.add(listener);
+    }
+
+    private void notifyArtifactAdded(String gav) {
+        List<Consumer<String>> listeners = new ArrayList<>(artifactAddedListeners.size());
+        synchronized (artifactAddedListeners) {
+            listeners.addAll(artifactAddedListeners);
+        }
+        for (var i : listeners) {
+            try {
+                i.accept(gav);
+            } catch (Throwable t) {
+                Log.errorf(t, "Failed to notify artifact added listener");
+            }
+        }
+    }
+
     public boolean isPossiblyRebuilt(String gav) {
-        return gavs.contains(gav);
+        if (gavs.contains(gav)) {
+            return true;
+        }
+        GavIndex snapshot = this.snapshot;
+        return snapshot != null && snapshot.contains(gav);
     }
 
 }
@@ -0,0 +1,43 @@
+package com.redhat.hacbs.artifactcache.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+
+import com.redhat.hacbs.artifactcache.services.ArtifactResult;
+
+/**
+ * Turns cached artifacts into responses.
+ */
+final class ArtifactResponses {
+
+    private ArtifactResponses() {
+    }
+
+    /**
+     * Creates a response for an artifact. If the artifact is on disk then the file is returned rather than a stream, so it
+     * is sent directly from the file system without being copied through the heap.
+     */
+    static Response artifactResponse(ArtifactResult result) {
+        var builder = Response.ok(result.getFileOrStream());
+        if (result.getMetadata().containsKey("maven-repo")) {
+            builder.header("X-maven-repo", result.getMetadata().get("maven-repo"));
+        }
+        if (result.getSize() > 0) {
+            builder.header(HttpHeaders.CONTENT_LENGTH, result.getSize());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads a result into memory and closes it. Upstream responses are closed when the request context that fetched
+     * them ends, so small files that may be streamed from upstream are buffered before they are returned.
+     */
+    static InputStream buffer(ArtifactResult result) throws Exception {
+        try (result) {
+            return new ByteArrayInputStream(result.getData().readAllBytes());
+        }
+    }
+}
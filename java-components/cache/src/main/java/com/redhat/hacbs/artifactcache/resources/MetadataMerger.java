@@ -0,0 +1,253 @@
+package com.redhat.hacbs.artifactcache.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntToLongFunction;
+
+import jakarta.inject.Singleton;
+
+import org.apache.http.client.utils.DateUtils;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
+import org.apache.maven.artifact.versioning.ComparableVersion;
+
+import com.redhat.hacbs.artifactcache.services.ArtifactResult;
+import com.redhat.hacbs.artifactcache.services.CacheFacade;
+import com.redhat.hacbs.resources.util.HashUtil;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Merges the maven-metadata.xml files from multiple repositories, and filters out versions that were released after a
+ * commit time.
+ * <p>
+ * The merged and sorted version list is memoized per group, keyed by the SHA-1 of the upstream files, so it is only
+ * parsed again when one of them changes. The last modified time of each version is also remembered, as released
+ * versions do not change, so after the first request only versions that were missing need to be looked up again.
+ */
+@Singleton
+class MetadataMerger {
+
+    static final int MAX_GROUPS = 10000;
+
+    /**
+     * The version was not found, so is never included
+     */
+    static final long NOT_FOUND = -1;
+
+    /**
+     * The version was found, but the last modified time is not known, so it is always included
+     */
+    static final long UNKNOWN = 0;
+
+    private final Map<GroupKey, GroupMetadata> groups = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<GroupKey, GroupMetadata> eldest) {
+                    return size() > MAX_GROUPS;
+                }
+            });
+
+    /**
+     * Returns the merged metadata, or its SHA-1. The results are always closed.
+     */
+    InputStream merge(CacheFacade cache, String buildPolicy, List<ArtifactResult> data, Date commitTime, String group,
+            boolean sha1) throws Exception {
+        byte[][] contents = new byte[data.size()][];
+        try {
+            for (int i = 0; i < contents.length; ++i) {
+                try (var in = data.get(i).getData()) {
+                    contents[i] = in.readAllBytes();
+                }
+            }
+        } finally {
+            for (var i : data) {
+                try {
+                    i.close();
+                } catch (Throwable t) {
+                    Log.error("Failed to close resource", t);
+                }
+            }
+        }
+        StringBuilder digest = new StringBuilder();
+        for (var i : contents) {
+            digest.append(HashUtil.sha1(i));
+        }
+        GroupMetadata metadata = groups.computeIfAbsent(new GroupKey(cache, buildPolicy, group), k -> new GroupMetadata());
+        Merged merged = metadata.merged;
+        if (merged == null || !merged.digest.equals(digest.toString())) {
+            merged = new Merged(digest.toString(), contents);
+            metadata.merged = merged;
+        }
+        byte[] result = merged.write(commitTime, timestamps(cache, buildPolicy, group, metadata, merged, commitTime));
+        if (sha1) {
+            return new ByteArrayInputStream(HashUtil.sha1(result).getBytes(StandardCharsets.UTF_8));
+        }
+        return new ByteArrayInputStream(result);
+    }
+
+    /**
+     * Returns the timestamps of the versions, looking them up the first time they are needed
+     */
+    private IntToLongFunction timestamps(CacheFacade cache, String buildPolicy, String group, GroupMetadata metadata,
+            Merged merged, Date commitTime) {
+        //group is not really a group
+        //depending on if there are plugins or versions
+        //we only care about versions, so we assume the last segment
+        //of the group is the artifact id
+        int lastIndex = group.lastIndexOf('/');
+        String artifactId = group.substring(lastIndex + 1);
+        String groupId = group.substring(0, lastIndex);
+        return index -> {
+            String version = merged.versions[index];
+            Long known = metadata.timestamps.get(version);
+            if (known != null) {
+                return known;
+            }
+            long timestamp = UNKNOWN;
+            var result = cache.getArtifactMetadata(buildPolicy, groupId, artifactId, version,
+                    artifactId + "-" + version + ".pom", false);
+            if (result.isPresent()) {
+                var lastModified = result.get().get("last-modified");
+                if (lastModified != null) {
+                    var date = DateUtils.parseDate(lastModified);
+                    if (date != null) {
+                        timestamp = date.getTime();
+                    }
+                }
+                metadata.timestamps.put(version, timestamp);
+            } else {
+                //this is not remembered, as the version may still be deployed
+                //the repository caches already remember missing files for a while, so this does not go upstream every time
+                timestamp = NOT_FOUND;
+            }
+            if (timestamp > commitTime.getTime()) {
+                //remove versions released after this artifact
+                Log.infof("Removing version %s from %s/maven-metadata.xml", version, group);
+            }
+            return timestamp;
+        };
+    }
+
+    /**
+     * Finds the newest version that should be included, all versions older than it are also included.
+     * <p>
+     * A version is included if it was found and was not modified after the commit time. The versions are checked from the
+     * newest down, and the first one that is included is the answer. Versions that were not found are skipped over.
+     * Technically an older point release may still end up being present that was not there at the commit time, but in
+     * practice this should not be an issue.
+     *
+     * @param count The number of versions, sorted newest to oldest
+     * @param commitTime The commit time, or 0 to include everything
+     * @param timestamps The timestamp of the version at an index
+     * @return The index of the newest included version, or count if none are included
+     */
+    static int newestIncluded(int count, long commitTime, IntToLongFunction timestamps) {
+        if (commitTime <= 0) {
+            return 0;
+        }
+        for (int i = 0; i < count; ++i) {
+            long timestamp = timestamps.applyAsLong(i);
+            if (timestamp != NOT_FOUND && timestamp <= commitTime) {
+                return i;
+            }
+        }
+        return count;
+    }
+
+    private record GroupKey(CacheFacade cache, String buildPolicy, String group) {
+    }
+
+    private static final class GroupMetadata {
+        final ConcurrentMap<String, Long> timestamps = new ConcurrentHashMap<>();
+        volatile Merged merged;
+    }
+
+    /**
+     * The parsed metadata from a set of upstream files
+     */
+    static final class Merged {
+
+        final String digest;
+
+        /**
+         * The first file, with no versions
+         */
+        final Metadata template;
+
+        /**
+         * The non snapshot versions from all the files, newest first
+         */
+        final String[] versions;
+
+        /**
+         * The output when there is no commit time, which is the same every time
+         */
+        private volatile byte[] unfiltered;
+
+        Merged(String digest, byte[][] contents) throws Exception {
+            this.digest = digest;
+            Metadata template = null;
+            //versions that compare as equal are only included once, the first one seen wins
+            TreeMap<ComparableVersion, String> seenVersions = new TreeMap<>(Collections.reverseOrder());
+            //we need to merge additional versions into a single file
+            for (var content : contents) {
+                MetadataXpp3Reader reader = new MetadataXpp3Reader();
+                var model = reader.read(new ByteArrayInputStream(content));
+                if (template == null) {
+                    template = model.clone();
+                    if (template.getVersioning() == null) {
+                        template.setVersioning(new Versioning());
+                    }
+                    template.getVersioning().setVersions(new ArrayList<>());
+                }
+                if (model.getVersioning() != null) {
+                    for (var version : model.getVersioning().getVersions()) {
+                        seenVersions.putIfAbsent(new ComparableVersion(version), version);
+                    }
+                }
+            }
+            this.template = template;
+            this.versions = seenVersions.values().stream().filter(s -> !s.contains("SNAPSHOT")).toArray(String[]::new);
+        }
+
+        byte[] write(Date commitTime, IntToLongFunction timestamps) throws Exception {
+            if (commitTime.getTime() <= 0 && unfiltered != null) {
+                return unfiltered;
+            }
+            Metadata outputModel = template.clone();
+            int newest = newestIncluded(versions.length, commitTime.getTime(), timestamps);
+            if (newest < versions.length) {
+                List<String> included = new ArrayList<>(versions.length - newest);
+                for (int i = newest; i < versions.length; ++i) {
+                    included.add(versions[i]);
+                }
+                outputModel.getVersioning().setVersions(included);
+                outputModel.getVersioning().setRelease(versions[newest]);
+                outputModel.getVersioning().setLatest(versions[newest]);
+                outputModel.getVersioning().setLastUpdatedTimestamp(commitTime);
+            }
+            MetadataXpp3Writer writer = new MetadataXpp3Writer();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.write(out, outputModel);
+            byte[] result = out.toByteArray();
+            if (commitTime.getTime() <= 0) {
+                unfiltered = result;
+            }
+            return result;
+        }
+    }
+}
@@ -1,17 +1,15 @@
 package com.redhat.hacbs.artifactcache.resources;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
@@ -19,79 +17,135 @@ import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.QueryParam;
-import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
 
-import org.apache.http.client.utils.DateUtils;
-import org.apache.maven.artifact.repository.metadata.Metadata;
-import org.apache.maven.artifact.repository.metadata.Versioning;
-import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
-import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
-import org.apache.maven.artifact.versioning.ComparableVersion;
-
 import com.redhat.hacbs.artifactcache.services.ArtifactResult;
 import com.redhat.hacbs.artifactcache.services.BuildPolicy;
 import com.redhat.hacbs.artifactcache.services.CacheFacade;
 import com.redhat.hacbs.artifactcache.services.RemoteRepositoryManager;
 import com.redhat.hacbs.artifactcache.services.RepositoryCache;
-import com.redhat.hacbs.resources.util.HashUtil;
+import com.redhat.hacbs.artifactcache.util.UpstreamExecutor;
 
 import io.micrometer.core.annotation.Counted;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
 import io.smallrye.common.annotation.Blocking;
+import io.smallrye.common.annotation.NonBlocking;
+import io.smallrye.mutiny.Uni;
 
 @Path("/v2/cache/")
 @Blocking
 public class V2CacheMavenResource {
 
     public static final String DEFAULT = "default";
+    static final int MAX_REBUILD_CACHES = 100;
     final CacheFacade cache;
     final RemoteRepositoryManager remoteRepositoryManager;
 
-    public V2CacheMavenResource(CacheFacade cache, RemoteRepositoryManager remoteRepositoryManager) {
+    /**
+     * The facades used for rebuilds, keyed by the requested stores. These are built on first use and reused until the
+     * remote stores change.
+     */
+    final ConcurrentMap<RebuildKey, RebuildCache> rebuildCaches = new ConcurrentHashMap<>();
+
+    final UpstreamExecutor upstream;
+    final MetadataMerger metadataMerger;
+    final MeterRegistry registry;
+
+    public V2CacheMavenResource(CacheFacade cache, RemoteRepositoryManager remoteRepositoryManager,
+            UpstreamExecutor upstream, MetadataMerger metadataMerger, MeterRegistry registry) {
         this.cache = cache;
         this.remoteRepositoryManager = remoteRepositoryManager;
+        this.upstream = upstream;
+        this.metadataMerger = metadataMerger;
+        this.registry = registry;
     }
 
     @GET
     @Path("rebuild{stores:(-[\\w-,]+)?}/{commit-time}/{group:.*?}/{artifact}/{version}/{target}")
     @Counted(value = "download_artifact_for_rebuild")
-    public Response getRebuild(@PathParam("stores") String stores,
+    @NonBlocking
+    public Uni<Response> getRebuild(@PathParam("stores") String stores,
             @PathParam("group") String group,
             @PathParam("artifact") String artifact,
             @PathParam("version") String version, @PathParam("target") String target,
-            @QueryParam(value = "upstream-only") @DefaultValue("false") boolean upstreamOnly) throws Exception {
-
-        CacheFacade facade = rebuildCache(stores, upstreamOnly);
+            @QueryParam(value = "upstream-only") @DefaultValue("false") boolean upstreamOnly) {
         Log.debugf("Retrieving artifact %s/%s/%s/%s", group, artifact, version, target);
-        var result = facade.getArtifactFile("", group, artifact, version, target, true);
-        if (result.isPresent()) {
-            var builder = Response.ok(result.get().getFileOrStream());
-            if (result.get().getMetadata().containsKey("maven-repo")) {
-                builder.header("X-maven-repo", result.get().getMetadata().get("maven-repo"))
-                        .build();
+        RebuildKey key = new RebuildKey(normalizeStores(stores), upstreamOnly);
+        //cache hits are served straight from the IO thread, only requests that need to go upstream are dispatched
+        CacheFacade existing = existingRebuildCache(key);
+        if (existing != null) {
+            var cached = existing.getCachedArtifactFile("", group, artifact, version, target, true);
+            if (cached.isPresent()) {
+                return Uni.createFrom().item(ArtifactResponses.artifactResponse(cached.get()));
             }
-            if (result.get().getSize() > 0) {
-                builder.header(HttpHeaders.CONTENT_LENGTH, result.get().getSize());
+        }
+        return upstream.submit(() -> {
+            var result = rebuildCache(key).getArtifactFile("", group, artifact, version, target, true);
+            if (result.isPresent()) {
+                return ArtifactResponses.artifactResponse(result.get());
             }
-            return builder.build();
+            Log.infof("Failed to get artifact %s/%s/%s/%s", group, artifact, version, target);
+            throw new NotFoundException();
+        });
+    }
+
+    /**
+     * Returns the facade for the given stores if it has already been built and is still current, otherwise null.
+     */
+    private CacheFacade existingRebuildCache(RebuildKey key) {
+        var existing = rebuildCaches.get(key);
+        if (existing != null && existing.generation() == remoteRepositoryManager.getGeneration()) {
+            return existing.facade();
         }
-        Log.infof("Failed to get artifact %s/%s/%s/%s", group, artifact, version, target);
-        throw new NotFoundException();
+        return null;
+    }
+
+    private CacheFacade rebuildCache(RebuildKey key) throws Exception {
+        long generation = remoteRepositoryManager.getGeneration();
+        var existing = existingRebuildCache(key);
+        if (existing != null) {
+            return existing;
+        }
+        //building the facade can itself add stores, so we record the generation from before we started
+        //if it changed this will just be rebuilt again on the next request
+        CacheFacade facade = createRebuildCache(key);
+        if (rebuildCaches.size() >= MAX_REBUILD_CACHES && !rebuildCaches.containsKey(key)) {
+            //the store combinations should be pretty limited, if they are not then just start again
+            rebuildCaches.clear();
+        }
+        rebuildCaches.put(key, new RebuildCache(generation, facade));
+        return facade;
     }
 
-    private CacheFacade rebuildCache(String stores, boolean upstreamOnly) throws Exception {
+    /**
+     * Removes the leading '-' and any duplicates from the store list, the order is preserved as it determines the order the
+     * stores are queried in.
+     */
+    static List<String> normalizeStores(String stores) {
+        if (stores.length() <= 1) {
+            return List.of();
+        }
+        Set<String> ret = new LinkedHashSet<>();
+        for (var i : stores.substring(1).split(",")) {
+            if (!i.isEmpty()) {
+                ret.add(i);
+            }
+        }
+        return List.copyOf(ret);
+    }
+
+    private CacheFacade createRebuildCache(RebuildKey key) throws Exception {
         List<RepositoryCache> caches = new ArrayList<>();
-        if (!upstreamOnly) {
+        if (!key.upstreamOnly()) {
             caches.addAll(remoteRepositoryManager.getRemoteRepositories("rebuilt"));
         }
-        if (stores.length() > 1) {
+        if (!key.stores().isEmpty()) {
             Set<String> seen = new HashSet<>();
             //we always add the default list
             caches.addAll(remoteRepositoryManager.getRemoteRepositories(RemoteRepositoryManager.SYSTEM + DEFAULT));
             caches.forEach(s -> seen.add(s.getRepository().getName()));
-            stores = stores.substring(1);
-            for (var i : stores.split(",")) {
+            for (var i : key.stores()) {
                 var store = remoteRepositoryManager.getRemoteRepositories(RemoteRepositoryManager.SYSTEM + i);
                 if (store != null) {
                     for (var s : store) {
@@ -108,29 +162,40 @@ public class V2CacheMavenResource {
             caches.addAll(remoteRepositoryManager.getRemoteRepositories(RemoteRepositoryManager.SYSTEM + DEFAULT));
         }
         BuildPolicy bp = new BuildPolicy(caches);
-        return new CacheFacade(Map.of("", bp));
+        return new CacheFacade(Map.of("", bp), upstream, registry);
+    }
+
+    record RebuildKey(List<String> stores, boolean upstreamOnly) {
+    }
+
+    record RebuildCache(long generation, CacheFacade facade) {
     }
 
     @GET
     @Path("rebuild{stores:(-[\\w-,]+)?}/{commit-time}/{group:.*?}/maven-metadata.xml{hash:.*?}")
     @Counted(value = "download_maven_metadata_for_rebuild")
-    public InputStream getRebuild(@PathParam("stores") String stores,
+    @NonBlocking
+    public Uni<InputStream> getRebuild(@PathParam("stores") String stores,
             @PathParam("commit-time") long commitTime,
             @PathParam("group") String group,
-            @PathParam("hash") String hash, @QueryParam(value = "upstream-only") @DefaultValue("false") boolean upstreamOnly)
-            throws Exception {
+            @PathParam("hash") String hash, @QueryParam(value = "upstream-only") @DefaultValue("false") boolean upstreamOnly) {
+        RebuildKey key = new RebuildKey(normalizeStores(stores), upstreamOnly);
+        return upstream.submit(() -> getRebuildMetadata(key, commitTime, group, hash));
+    }
+
+    private InputStream getRebuildMetadata(RebuildKey key, long commitTime, String group, String hash) throws Exception {
         Log.debugf("Retrieving file %s/%s", group, "maven-metadata.xml");
-        CacheFacade cache = rebuildCache(stores, upstreamOnly);
+        CacheFacade cache = rebuildCache(key);
         var result = cache.getMetadataFiles("", group, "maven-metadata.xml" + hash);
         if (!result.isEmpty()) {
             boolean sha = hash.equals(".sha1");
             if ((commitTime > 0 || result.size() > 1) && (hash.equals("") || sha)) {
                 if (sha) {
-                    return filterNewerVersions(cache, "",
+                    return metadataMerger.merge(cache, "",
                             cache.getMetadataFiles("", group, "maven-metadata.xml"),
                             new Date(commitTime), group, sha);
                 } else {
-                    return filterNewerVersions(cache, "", result, new Date(commitTime), group, sha);
+                    return metadataMerger.merge(cache, "", result, new Date(commitTime), group, sha);
                 }
             }
             //just return the first one, and close the others
@@ -142,7 +207,7 @@ public class V2CacheMavenResource {
                     Log.error("Failed to close resource", t);
                 }
             }
-            return first.getData();
+            return ArtifactResponses.buffer(first);
         }
         Log.infof("Failed retrieving file %s/%s", group, "maven-metadata.xml");
         throw new NotFoundException();
@@ -151,44 +216,49 @@ public class V2CacheMavenResource {
     @GET
     @Path("user/{build-policy}/{group:.*?}/{artifact}/{version}/{target}")
     @Counted(value = "download_artifact_for_user_build")
-    public Response get(@PathParam("build-policy") String buildPolicy,
+    @NonBlocking
+    public Uni<Response> get(@PathParam("build-policy") String buildPolicy,
             @PathParam("group") String group,
             @PathParam("artifact") String artifact,
-            @PathParam("version") String version, @PathParam("target") String target) throws Exception {
+            @PathParam("version") String version, @PathParam("target") String target) {
         Log.debugf("Retrieving artifact %s/%s/%s/%s", group, artifact, version, target);
-        var result = cache.getArtifactFile(buildPolicy, group, artifact, version, target, true);
-        if (result.isPresent()) {
-            var builder = Response.ok(result.get().getData());
-            if (result.get().getMetadata().containsKey("maven-repo")) {
-                builder.header("X-maven-repo", result.get().getMetadata().get("maven-repo"))
-                        .build();
-            }
-            if (result.get().getSize() > 0) {
-                builder.header(HttpHeaders.CONTENT_LENGTH, result.get().getSize());
-            }
-            return builder.build();
+        //cache hits are served straight from the IO thread, only requests that need to go upstream are dispatched
+        var cached = cache.getCachedArtifactFile(buildPolicy, group, artifact, version, target, true);
+        if (cached.isPresent()) {
+            return Uni.createFrom().item(ArtifactResponses.artifactResponse(cached.get()));
         }
-        Log.infof("Failed to get artifact %s/%s/%s/%s", group, artifact, version, target);
-        throw new NotFoundException();
+        return upstream.submit(() -> {
+            var result = cache.getArtifactFile(buildPolicy, group, artifact, version, target, true);
+            if (result.isPresent()) {
+                return ArtifactResponses.artifactResponse(result.get());
+            }
+            Log.infof("Failed to get artifact %s/%s/%s/%s", group, artifact, version, target);
+            throw new NotFoundException();
+        });
     }
 
     @GET
     @Path("user/{build-policy}/{group:.*?}/maven-metadata.xml{hash:.*?}")
     @Counted(value = "download_maven_metadata_for_user_build")
-    public InputStream get(@PathParam("build-policy") String buildPolicy,
+    @NonBlocking
+    public Uni<InputStream> get(@PathParam("build-policy") String buildPolicy,
             @PathParam("group") String group,
-            @PathParam("hash") String hash) throws Exception {
+            @PathParam("hash") String hash) {
+        return upstream.submit(() -> getMetadata(buildPolicy, group, hash));
+    }
+
+    private InputStream getMetadata(String buildPolicy, String group, String hash) throws Exception {
         Log.debugf("Retrieving file %s/%s", group, "maven-metadata.xml");
         var result = cache.getMetadataFiles(buildPolicy, group, "maven-metadata.xml" + hash);
         if (!result.isEmpty()) {
             boolean sha = hash.equals(".sha1");
             if ((result.size() > 1) && (hash.equals("") || sha)) {
                 if (sha) {
-                    return filterNewerVersions(cache, buildPolicy,
+                    return metadataMerger.merge(cache, buildPolicy,
                             cache.getMetadataFiles(buildPolicy, group, "maven-metadata.xml"),
                             new Date(0), group, sha);
                 } else {
-                    return filterNewerVersions(cache, buildPolicy, result, new Date(0), group, sha);
+                    return metadataMerger.merge(cache, buildPolicy, result, new Date(0), group, sha);
                 }
             }
             //just return the first one, and close the others
@@ -200,107 +270,10 @@ public class V2CacheMavenResource {
                     Log.error("Failed to close resource", t);
                 }
             }
-            return first.getData();
+            return ArtifactResponses.buffer(first);
         }
         Log.infof("Failed retrieving file %s/%s", group, "maven-metadata.xml");
         throw new NotFoundException();
     }
 
-    private InputStream filterNewerVersions(CacheFacade cache, String buildPolicy, List<ArtifactResult> data, Date commitTime,
-            String group,
-            boolean sha1)
-            throws Exception {
-        try {
-            //group is not really a group
-            //depending on if there are plugins or versions
-            //we only care about versions, so we assume the last segment
-            //of the group is the artifact id
-            int lastIndex = group.lastIndexOf('/');
-            String artifactId = group.substring(lastIndex + 1);
-            String groupId = group.substring(0, lastIndex);
-            Metadata outputModel = null;
-            boolean firstFile = true;
-            Set<String> seenVersions = new TreeSet<>(new Comparator<String>() {
-                @Override
-                public int compare(String o1, String o2) {
-                    return new ComparableVersion(o2).compareTo(new ComparableVersion(o1));
-                }
-            });
-            //we need to merge additional versions into a single file
-            for (var i : data) {
-                try (var in = i.getData()) {
-                    MetadataXpp3Reader reader = new MetadataXpp3Reader();
-                    var model = reader.read(in);
-                    if (firstFile) {
-                        outputModel = model.clone();
-                        if (outputModel.getVersioning() == null) {
-                            outputModel.setVersioning(new Versioning());
-                        }
-                        outputModel.getVersioning().setVersions(new ArrayList<>());
-                    }
-                    if (model.getVersioning() != null) {
-                        seenVersions.addAll(model.getVersioning().getVersions());
-                    }
-                }
-                firstFile = false;
-            }
-            //iterate most recent to oldest
-            //once we have started including older versions then we can stop checking
-            //technically an older point release may still end up being present that was
-            //not there at the commit time, but in practice this should not be an issue
-            boolean addAll = false;
-            for (var version : seenVersions) {
-                if (version.contains("SNAPSHOT")) {
-                    continue;
-                }
-                if (addAll) {
-                    outputModel.getVersioning().getVersions().add(version);
-                } else {
-                    if (commitTime.getTime() > 0) {
-                        var result = cache.getArtifactMetadata(buildPolicy, groupId, artifactId, version,
-                                artifactId + "-" + version + ".pom", false);
-                        if (result.isPresent()) {
-                            var lastModified = result.get().get("last-modified");
-                            if (lastModified != null) {
-                                var date = DateUtils.parseDate(lastModified);
-                                if (date != null && date.after(commitTime)) {
-                                    //remove versions released after this artifact
-                                    Log.infof("Removing version %s from %s/maven-metadata.xml", version, group);
-                                    continue;
-                                }
-                            }
-                        } else {
-                            //not found, don't add it
-                            continue;
-                        }
-                    }
-                    //the default behaviour is to add the version, set it to latest and move to add all mode
-                    //if the artifact is not found or too new then it this is skipped by the continue statements
-                    //above
-                    outputModel.getVersioning().getVersions().add(version);
-                    outputModel.getVersioning().setRelease(version);
-                    outputModel.getVersioning().setLatest(version);
-                    outputModel.getVersioning().setLastUpdatedTimestamp(commitTime);
-                    addAll = true;
-                }
-            }
-            MetadataXpp3Writer writer = new MetadataXpp3Writer();
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            writer.write(out, outputModel);
-            if (sha1) {
-                return new ByteArrayInputStream(HashUtil.sha1(out.toByteArray()).getBytes(StandardCharsets.UTF_8));
-            } else {
-                return new ByteArrayInputStream(out.toByteArray());
-            }
-        } finally {
-            for (var i : data) {
-                try {
-                    i.close();
-                } catch (Throwable t) {
-                    Log.error("Failed to close resource", t);
-                }
-            }
-        }
-    }
-
 }
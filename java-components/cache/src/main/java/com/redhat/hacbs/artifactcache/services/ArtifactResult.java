@@ -1,5 +1,6 @@
 package com.redhat.hacbs.artifactcache.services;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -7,6 +8,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import io.quarkus.logging.Log;
 
@@ -15,12 +17,21 @@ public class ArtifactResult implements AutoCloseable {
     private final Path file;
     private final InputStream data;
     private final long size;
-    private final Optional<String> expectedSha;
+    private final Supplier<Optional<String>> expectedSha;
     private final Map<String, String> metadata;
     private final List<Runnable> closeTasks;
 
     public ArtifactResult(Path file, InputStream data, long size, Optional<String> expectedSha, Map<String, String> metadata,
             Runnable... closeTasks) {
+        this(file, data, size, () -> expectedSha, metadata, closeTasks);
+    }
+
+    /**
+     * Creates a result where the expected SHA-1 may not be known until later, e.g. because it is still being downloaded.
+     * The supplier may block, so it should only be called once the data has been read.
+     */
+    public ArtifactResult(Path file, InputStream data, long size, Supplier<Optional<String>> expectedSha,
+            Map<String, String> metadata, Runnable... closeTasks) {
         this.file = file;
         this.data = data;
         this.size = size;
@@ -37,17 +48,23 @@ public class ArtifactResult implements AutoCloseable {
      * Returns a Path if present, otherwise the InputStream that can be used to read the data.
      *
      * As the Path object can be served more efficiently, JAX-RS will get improved performance when the Path is in use.
-     *
+     * The file is sent directly from the file system, so the stream is closed. If there are close tasks (e.g. to delete a
+     * temporary file) then the stream is always returned, as nothing would run them after the file was served.
      */
     public Object getFileOrStream() {
-        if (file != null) {
+        if (file != null && closeTasks.isEmpty()) {
+            try {
+                data.close();
+            } catch (IOException e) {
+                Log.debugf(e, "Failed to close stream for %s", file);
+            }
             return file;
         }
         return data;
     }
 
     public Optional<String> getExpectedSha() {
-        return expectedSha;
+        return expectedSha.get();
     }
 
     public Map<String, String> getMetadata() {
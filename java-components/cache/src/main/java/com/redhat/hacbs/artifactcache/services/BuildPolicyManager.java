@@ -14,7 +14,9 @@ import org.eclipse.microprofile.config.Config;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import com.redhat.hacbs.artifactcache.relocation.RelocationRepositoryClient;
+import com.redhat.hacbs.artifactcache.util.UpstreamExecutor;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
 
 /**
@@ -29,9 +31,16 @@ class BuildPolicyManager {
 
     final RemoteRepositoryManager remoteRepositoryManager;
 
-    BuildPolicyManager(StorageManager storageManager, RemoteRepositoryManager remoteRepositoryManager) {
+    final MeterRegistry registry;
+
+    final UpstreamExecutor upstreamExecutor;
+
+    BuildPolicyManager(StorageManager storageManager, RemoteRepositoryManager remoteRepositoryManager,
+            MeterRegistry registry, UpstreamExecutor upstreamExecutor) {
         this.storageManager = storageManager;
         this.remoteRepositoryManager = remoteRepositoryManager;
+        this.registry = registry;
+        this.upstreamExecutor = upstreamExecutor;
     }
 
     @Produces
@@ -71,7 +80,7 @@ class BuildPolicyManager {
                 repositories.add(new RepositoryCache(storageManager.resolve(name),
                         new Repository(name, "hacbs-internal://relocations",
                                 RepositoryType.RELOCATIONS, new RelocationRepositoryClient(policyRelocations)),
-                        true));
+                        true, registry, upstreamExecutor.background()));
             }
             for (var store : stores.get().split(",")) {
                 var cache = remoteRepositoryManager.getRemoteRepositories(store);
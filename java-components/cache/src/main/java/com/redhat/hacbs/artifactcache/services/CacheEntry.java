@@ -0,0 +1,45 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The in memory state of a {@link RootStorageManager} entry.
+ * <p>
+ * Accesses only update the volatile fields here, they are reported to the {@link EvictionPolicy} lazily when the entry
+ * comes up as an eviction candidate, so the hot path does not contend on the policy's shared structures.
+ */
+final class CacheEntry {
+
+    volatile long lastAccess;
+
+    /**
+     * The number of times this entry has been accessed. Concurrent increments may be lost, which is fine as this is
+     * only used as an estimate by the eviction policy.
+     */
+    volatile long accessCount;
+
+    /**
+     * The size of the entry as of the last time it was measured.
+     */
+    volatile long size;
+
+    /**
+     * Set once the directory and its marker are known to exist, so we don't need to check the file system on every access.
+     */
+    volatile boolean materialized;
+
+    /**
+     * The number of open leases, entries with leases will not be evicted.
+     */
+    final AtomicInteger leases = new AtomicInteger();
+
+    CacheEntry(long lastAccess) {
+        this.lastAccess = lastAccess;
+        this.accessCount = 1;
+    }
+
+    void accessed(long time) {
+        lastAccess = time;
+        accessCount++;
+    }
+}
@@ -5,26 +5,54 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import jakarta.enterprise.context.control.ActivateRequestContext;
 import jakarta.inject.Singleton;
 
+import org.eclipse.microprofile.config.ConfigProvider;
+
+import com.redhat.hacbs.artifactcache.util.UpstreamExecutor;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
 
 /**
  * The cache implementation, this acts as a normal client
+ * <p>
+ * Repositories are always checked in policy order, and the first one that has the artifact wins. If speculative routing
+ * is enabled then a repository that is taking longer than usual to answer does not hold up the ones after it, once it
+ * has taken longer than its usual lookup time the next repository is asked as well. The result from the earlier
+ * repository is still used if it has the artifact.
  */
 @Singleton
 @Startup
 public class CacheFacade {
 
+    public static final String SPECULATIVE_ROUTING = "cache-speculative-routing";
+
     final Map<String, BuildPolicy> buildPolicies;
     final Map<String, List<RepositoryCache>> buildPolicyCaches;
+    final boolean speculativeRouting;
+    final Executor lookups;
+    final Counter speculativeLookups;
 
-    public CacheFacade(Map<String, BuildPolicy> buildPolicies) throws Exception {
+    public CacheFacade(Map<String, BuildPolicy> buildPolicies, UpstreamExecutor upstreamExecutor, MeterRegistry registry)
+            throws Exception {
         this.buildPolicies = buildPolicies;
+        this.lookups = upstreamExecutor.background();
+        this.speculativeLookups = registry.counter("speculative_repository_lookups");
         this.buildPolicyCaches = new HashMap<>();
+        this.speculativeRouting = ConfigProvider.getConfig().getOptionalValue(SPECULATIVE_ROUTING, Boolean.class)
+                .orElse(false);
 
         for (var e : buildPolicies.entrySet()) {
             List<RepositoryCache> cacheList = new ArrayList<>(e.getValue().getRepositories());
@@ -35,15 +63,149 @@ public class CacheFacade {
     @ActivateRequestContext
     public Optional<ArtifactResult> getArtifactFile(String buildPolicy, String group, String artifact, String version,
             String target, boolean tracked) {
-        //first attempt we only look for cached files, so no network access
+        List<RepositoryCache> caches = new ArrayList<>();
+        for (var i : buildPolicyCaches.get(buildPolicy)) {
+            //this does not use up a re-probe, that only happens once the repository is actually about to be queried
+            if (i.mayContainGroup(group, false)) {
+                caches.add(i);
+            }
+        }
+        if (speculativeRouting && caches.size() > 1) {
+            return getArtifactFileSpeculatively(caches, group, artifact, version, target, tracked);
+        }
+        for (var i : caches) {
+            var res = lookup(i, group, artifact, version, target, tracked);
+            if (res.isPresent()) {
+                return res;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Optional<ArtifactResult> getArtifactFileSpeculatively(List<RepositoryCache> caches, String group,
+            String artifact, String version, String target, boolean tracked) {
+        List<CompletableFuture<Optional<ArtifactResult>>> lookups = new ArrayList<>();
+        int used = -1;
+        try {
+            lookups.add(submitLookup(caches.get(0), group, artifact, version, target, tracked));
+            for (int i = 0; i < caches.size(); ++i) {
+                var current = lookups.get(i);
+                Optional<ArtifactResult> result = null;
+                while (result == null) {
+                    if (lookups.size() == caches.size()) {
+                        result = current.get();
+                    } else {
+                        try {
+                            result = current.get(caches.get(i).stats.getHedgeDelay(), TimeUnit.NANOSECONDS);
+                        } catch (TimeoutException e) {
+                            //this is taking longer than usual, so start asking the next repository as well
+                            speculativeLookups.increment();
+                            lookups.add(submitLookup(caches.get(lookups.size()), group, artifact, version, target,
+                                    tracked));
+                        }
+                    }
+                }
+                if (result.isPresent()) {
+                    used = i;
+                    return result;
+                }
+                if (lookups.size() == i + 1 && i + 1 < caches.size()) {
+                    lookups.add(submitLookup(caches.get(i + 1), group, artifact, version, target, tracked));
+                }
+            }
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            //results from the other repositories are not used, but they have still been added to the cache
+            for (int i = 0; i < lookups.size(); ++i) {
+                if (i != used) {
+                    lookups.get(i).thenAccept(r -> r.ifPresent(CacheFacade::close));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a lookup on the upstream background pool, with its own request context. Results from the cache never depend on
+     * the request context they were created in, so they are still valid after it has been terminated.
+     * <p>
+     * If the pool is full the lookup runs on the calling thread, and so uses the caller's request context, which must
+     * not be terminated. The lookup then finishes before the next repository is asked.
+     */
+    private CompletableFuture<Optional<ArtifactResult>> submitLookup(RepositoryCache cache, String group, String artifact,
+            String version, String target, boolean tracked) {
+        return CompletableFuture.supplyAsync(() -> {
+            ManagedContext requestContext = Arc.container().requestContext();
+            boolean activated = !requestContext.isActive();
+            if (activated) {
+                requestContext.activate();
+            }
+            try {
+                return lookup(cache, group, artifact, version, target, tracked);
+            } finally {
+                if (activated) {
+                    requestContext.terminate();
+                }
+            }
+        }, lookups);
+    }
+
+    private Optional<ArtifactResult> lookup(RepositoryCache cache, String group, String artifact, String version,
+            String target, boolean tracked) {
+        if (!cache.mayContainGroup(group, true)) {
+            //another request is re-probing the group
+            return Optional.empty();
+        }
+        long start = System.nanoTime();
+        try {
+            var res = cache.getArtifactFile(group, artifact, version, target, tracked, false);
+            //errors are thrown, so only a genuine miss is recorded as one
+            cache.lookupComplete(group, System.nanoTime() - start, res.isPresent());
+            return res;
+        } catch (Throwable t) {
+            Log.errorf(t, "Unable to download %s:%s:%s", group, artifact, target);
+            return Optional.empty();
+        }
+    }
+
+    private static void close(ArtifactResult result) {
+        try {
+            result.close();
+        } catch (Exception e) {
+            Log.debugf(e, "Failed to close unused result");
+        }
+    }
+
+    /**
+     * Returns the artifact if it can be served straight from the cache, without any blocking operations. If this
+     * returns an empty result then {@link #getArtifactFile(String, String, String, String, String, boolean)} must be
+     * used, as the artifact may still be available upstream.
+     * <p>
+     * Repositories are still checked in policy order, so this only skips a repository if it is known not to have the
+     * artifact, or is skipped for the group.
+     */
+    public Optional<ArtifactResult> getCachedArtifactFile(String buildPolicy, String group, String artifact, String version,
+            String target, boolean tracked) {
         for (var i : buildPolicyCaches.get(buildPolicy)) {
+            if (!i.mayContainGroup(group, false)) {
+                continue;
+            }
             try {
-                var res = i.getArtifactFile(group, artifact, version, target, tracked, false);
+                var res = i.getCachedArtifactFile(group, artifact, version, target, tracked);
                 if (res.isPresent()) {
                     return res;
                 }
+                if (!i.isKnownMissing(group, artifact, version, target, tracked)) {
+                    //we would need to check this one upstream before moving onto the next
+                    return Optional.empty();
+                }
             } catch (Throwable t) {
-                Log.errorf(t, "Unable to download %s:%s:%s", group, artifact, target);
+                Log.errorf(t, "Unable to read cached %s:%s:%s", group, artifact, target);
+                return Optional.empty();
             }
         }
         return Optional.empty();
@@ -53,7 +215,12 @@ public class CacheFacade {
     public Optional<Map<String, String>> getArtifactMetadata(String buildPolicy, String group, String artifact, String version,
             String target, boolean tracked) {
         //first attempt we only look for cached files, so no network access
-        List<RepositoryCache> cacheList = buildPolicyCaches.get(buildPolicy);
+        List<RepositoryCache> cacheList = new ArrayList<>();
+        for (var i : buildPolicyCaches.get(buildPolicy)) {
+            if (i.getRepository().mayContainGroup(group)) {
+                cacheList.add(i);
+            }
+        }
         for (var i : cacheList) {
             try {
                 var res = i.getArtifactFile(group, artifact, version, target, tracked, true);
@@ -81,6 +248,9 @@ public class CacheFacade {
     public List<ArtifactResult> getMetadataFiles(String buildPolicy, String group, String target) {
         List<ArtifactResult> results = new ArrayList<>();
         for (var i : buildPolicyCaches.get(buildPolicy)) {
+            if (!i.getRepository().mayContainGroup(group)) {
+                continue;
+            }
             var res = i.getMetadataFile(group, target);
             if (res.isPresent()) {
                 results.add(res.get());
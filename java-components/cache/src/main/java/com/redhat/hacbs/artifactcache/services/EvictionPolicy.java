@@ -0,0 +1,61 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.Iterator;
+
+/**
+ * Decides the order in which {@link RootStorageManager} entries are deleted when the cache needs to free space.
+ * <p>
+ * Implementations are kept up to date incrementally as entries are accessed, so picking victims never requires a full
+ * sort of the cache contents.
+ */
+interface EvictionPolicy {
+
+    String LRU = "lru";
+    String GDSF = "gdsf";
+
+    /**
+     * Records an access to an entry, adding it if it is not already tracked.
+     * <p>
+     * Accesses are not reported to the policy every time they happen, so this is passed the total access count.
+     */
+    void accessed(String key, long time, long accessCount);
+
+    /**
+     * Records the current size in bytes of an entry.
+     */
+    void sized(String key, long size);
+
+    /**
+     * Stops tracking an entry that has been deleted for a reason other than eviction.
+     */
+    void removed(String key);
+
+    /**
+     * Stops tracking an entry that has been evicted.
+     */
+    void evicted(String key);
+
+    /**
+     * Returns the tracked entries in the order they should be evicted. This is weakly consistent, entries that are
+     * accessed while iterating may or may not be returned.
+     */
+    Iterator<Candidate> victims();
+
+    static EvictionPolicy create(String name) {
+        switch (name) {
+            case LRU:
+                return new LruEvictionPolicy();
+            case GDSF:
+                return new GdsfEvictionPolicy();
+            default:
+                throw new IllegalArgumentException("Unknown cache eviction policy " + name);
+        }
+    }
+
+    /**
+     * An entry that can be evicted. The last access time is the time as known by the policy, if the entry has been
+     * accessed since then it should not be evicted.
+     */
+    record Candidate(String key, long lastAccess) {
+    }
+}
@@ -0,0 +1,28 @@
+package com.redhat.hacbs.artifactcache.services;
+
+/**
+ * Greedy Dual Size Frequency eviction.
+ * <p>
+ * The priority of an entry is {@code L + frequency / size}, where {@code L} is the priority of the last evicted entry.
+ * Large entries that are rarely used go first, so a single big jar is evicted before thousands of small pom directories.
+ * As {@code L} grows with every eviction, entries that have not been accessed for a while will eventually be evicted
+ * no matter how small they are.
+ */
+class GdsfEvictionPolicy extends PriorityEvictionPolicy {
+
+    private volatile double inflation;
+
+    @Override
+    double priority(long lastAccess, long size, long frequency) {
+        return inflation + (double) frequency / Math.max(size, 1);
+    }
+
+    @Override
+    public void evicted(String key) {
+        Node node = nodes.get(key);
+        if (node != null && node.priority > inflation) {
+            inflation = node.priority;
+        }
+        super.evicted(key);
+    }
+}
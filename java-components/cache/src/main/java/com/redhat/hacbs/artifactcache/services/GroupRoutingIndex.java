@@ -0,0 +1,146 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.redhat.hacbs.artifactcache.util.AppendOnlyJournal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Learns which group prefixes a repository hosts, from the hits and misses seen when it is queried.
+ * <p>
+ * Most repositories only host a small number of groups, so once a repository has missed enough times for a prefix it has
+ * never served, it is skipped for that prefix. A skipped prefix is re-probed once per re-probe interval, so the index
+ * corrects itself if the repository starts hosting the group. Prefixes are the first two segments of the group, e.g.
+ * {@code org/apache}.
+ * <p>
+ * Only the served and skipped prefixes are persisted, to an append only file in the same way as the not found cache.
+ * Skipped prefixes are re-probed one interval after startup.
+ */
+final class GroupRoutingIndex {
+
+    static final String FILE = ".group-routing";
+
+    static final int MISS_THRESHOLD = 20;
+    private static final int PREFIX_DEPTH = 2;
+
+    private static final String SERVED = "S";
+    private static final String SKIPPED = "M";
+
+    private final long reprobeInterval;
+    private final Counter skips;
+    private final ConcurrentMap<String, Prefix> prefixes = new ConcurrentHashMap<>();
+    private final AppendOnlyJournal journal;
+
+    GroupRoutingIndex(Path file, Duration reprobeInterval, MeterRegistry registry) {
+        this.reprobeInterval = reprobeInterval.toMillis();
+        this.skips = registry.counter("group_routing_skips");
+        this.journal = new AppendOnlyJournal(file, () -> prefixes.entrySet().stream()
+                .filter(e -> e.getValue().served || e.getValue().isSkipped())
+                .map(e -> (e.getValue().served ? SERVED : SKIPPED) + " " + e.getKey()));
+        load();
+    }
+
+    /**
+     * Returns false if the repository should be skipped for the group.
+     *
+     * @param group The group in path form
+     * @param probe If this is true and the prefix is due to be re-probed then the caller is the re-probe, and the prefix
+     *        will not be re-probed again until the next interval
+     */
+    boolean mayContain(String group, long now, boolean probe) {
+        Prefix prefix = prefixes.get(prefix(group));
+        if (prefix == null || !prefix.isSkipped()) {
+            return true;
+        }
+        synchronized (prefix) {
+            if (now - prefix.lastProbe < reprobeInterval) {
+                skips.increment();
+                return false;
+            }
+            if (probe) {
+                prefix.lastProbe = now;
+            }
+            return true;
+        }
+    }
+
+    void hit(String group) {
+        Prefix prefix = prefixes.computeIfAbsent(prefix(group), k -> new Prefix());
+        if (prefix.served) {
+            return;
+        }
+        synchronized (prefix) {
+            if (!prefix.served) {
+                prefix.served = true;
+                prefix.misses = 0;
+                journal.append(SERVED + " " + prefix(group), prefixes.size());
+            }
+        }
+    }
+
+    void miss(String group, long now) {
+        Prefix prefix = prefixes.computeIfAbsent(prefix(group), k -> new Prefix());
+        if (prefix.served) {
+            return;
+        }
+        synchronized (prefix) {
+            if (!prefix.served && ++prefix.misses == MISS_THRESHOLD) {
+                prefix.lastProbe = now;
+                journal.append(SKIPPED + " " + prefix(group), prefixes.size());
+            }
+        }
+    }
+
+    static String prefix(String group) {
+        int end = -1;
+        for (int i = 0; i < PREFIX_DEPTH; ++i) {
+            end = group.indexOf('/', end + 1);
+            if (end == -1) {
+                return group;
+            }
+        }
+        return group.substring(0, end);
+    }
+
+    /**
+     * Forgets everything that has been learnt. This is called when the storage has been cleared, which deletes the file
+     * that is being appended to.
+     */
+    void reset() {
+        prefixes.clear();
+        journal.reset();
+    }
+
+    private void load() {
+        long now = System.currentTimeMillis();
+        journal.load(line -> {
+            int space = line.indexOf(' ');
+            if (space == -1) {
+                return;
+            }
+            Prefix prefix = prefixes.computeIfAbsent(line.substring(space + 1), k -> new Prefix());
+            if (line.startsWith(SERVED)) {
+                prefix.served = true;
+                prefix.misses = 0;
+            } else if (!prefix.served) {
+                prefix.misses = MISS_THRESHOLD;
+                prefix.lastProbe = now;
+            }
+        });
+    }
+
+    private static final class Prefix {
+        volatile boolean served;
+        volatile int misses;
+        long lastProbe;
+
+        boolean isSkipped() {
+            return !served && misses >= MISS_THRESHOLD;
+        }
+    }
+}
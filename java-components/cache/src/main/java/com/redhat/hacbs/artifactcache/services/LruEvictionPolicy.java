@@ -0,0 +1,12 @@
+package com.redhat.hacbs.artifactcache.services;
+
+/**
+ * Evicts the least recently used entries first, regardless of their size.
+ */
+class LruEvictionPolicy extends PriorityEvictionPolicy {
+
+    @Override
+    double priority(long lastAccess, long size, long frequency) {
+        return lastAccess;
+    }
+}
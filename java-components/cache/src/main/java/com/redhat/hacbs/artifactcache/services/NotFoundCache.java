@@ -0,0 +1,115 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.redhat.hacbs.artifactcache.util.AppendOnlyJournal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+
+/**
+ * Remembers files that a repository does not have, so repeated lookups for them do not need to go to the network.
+ * <p>
+ * Entries expire after a fixed TTL. They are persisted to an append only file in the repository storage directory, so
+ * they survive restarts, and the file is compacted when it is loaded or when it gets too large.
+ */
+class NotFoundCache {
+
+    static final String FILE = ".not-found";
+
+    private final long ttl;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * The expiry time of each entry
+     */
+    private final ConcurrentMap<String, Long> entries = new ConcurrentHashMap<>();
+    private final AppendOnlyJournal journal;
+
+    NotFoundCache(Path file, Duration ttl, MeterRegistry registry) {
+        this.ttl = ttl.toMillis();
+        this.journal = new AppendOnlyJournal(file, () -> {
+            long now = System.currentTimeMillis();
+            return entries.entrySet().stream().filter(e -> e.getValue() > now).map(e -> e.getValue() + " " + e.getKey());
+        });
+        this.hits = registry.counter("not_found_cache_hits");
+        this.misses = registry.counter("not_found_cache_misses");
+        if (this.ttl > 0) {
+            load();
+        }
+    }
+
+    /**
+     * Returns true if the file was not found the last time it was looked up, and the entry has not expired yet.
+     */
+    boolean isNotFound(String key) {
+        if (ttl <= 0) {
+            return false;
+        }
+        Long expiry = entries.get(key);
+        if (expiry != null) {
+            if (expiry > System.currentTimeMillis()) {
+                hits.increment();
+                return true;
+            }
+            entries.remove(key, expiry);
+        }
+        misses.increment();
+        return false;
+    }
+
+    void notFound(String key) {
+        if (ttl <= 0) {
+            return;
+        }
+        long expiry = System.currentTimeMillis() + ttl;
+        entries.put(key, expiry);
+        journal.append(expiry + " " + key, entries.size());
+    }
+
+    /**
+     * Removes all entries that start with the given prefix.
+     */
+    void invalidate(String prefix) {
+        for (var key : entries.keySet()) {
+            if (key.startsWith(prefix) && entries.remove(key) != null) {
+                journal.append("0 " + key, entries.size());
+            }
+        }
+    }
+
+    /**
+     * Forgets all entries. This is called when the storage has been cleared, which deletes the file that is being
+     * appended to.
+     */
+    void reset() {
+        entries.clear();
+        journal.reset();
+    }
+
+    private void load() {
+        long now = System.currentTimeMillis();
+        journal.load(line -> {
+            int index = line.indexOf(' ');
+            if (index <= 0) {
+                return;
+            }
+            try {
+                //later lines replace earlier ones, and invalidated entries have an expiry of 0
+                long expiry = Long.parseLong(line.substring(0, index));
+                if (expiry > now) {
+                    entries.put(line.substring(index + 1), expiry);
+                } else {
+                    entries.remove(line.substring(index + 1));
+                }
+            } catch (NumberFormatException e) {
+                Log.debugf("Ignoring invalid line in %s: %s", FILE, line);
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Base class for eviction policies that evict the entry with the lowest priority first.
+ * <p>
+ * Entries are held in a skip list ordered by priority, so every update is O(log n) and victims can be read straight
+ * off the head of the list.
+ */
+abstract class PriorityEvictionPolicy implements EvictionPolicy {
+
+    final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+    final ConcurrentSkipListSet<Node> queue = new ConcurrentSkipListSet<>();
+
+    /**
+     * Calculates the priority of an entry, lower priority entries are evicted first.
+     */
+    abstract double priority(long lastAccess, long size, long frequency);
+
+    @Override
+    public void accessed(String key, long time, long accessCount) {
+        nodes.compute(key, (k, old) -> {
+            long size = old == null ? 0 : old.size;
+            long frequency = Math.max(accessCount, 1);
+            return replace(old, new Node(key, priority(time, size, frequency), time, size, frequency));
+        });
+    }
+
+    @Override
+    public void sized(String key, long size) {
+        nodes.computeIfPresent(key, (k, old) -> replace(old,
+                new Node(key, priority(old.lastAccess, size, old.frequency), old.lastAccess, size, old.frequency)));
+    }
+
+    @Override
+    public void removed(String key) {
+        nodes.computeIfPresent(key, (k, old) -> {
+            queue.remove(old);
+            return null;
+        });
+    }
+
+    @Override
+    public void evicted(String key) {
+        removed(key);
+    }
+
+    @Override
+    public Iterator<Candidate> victims() {
+        Iterator<Node> it = queue.iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Candidate next() {
+                Node node = it.next();
+                return new Candidate(node.key, node.lastAccess);
+            }
+        };
+    }
+
+    private Node replace(Node old, Node node) {
+        if (old != null) {
+            queue.remove(old);
+        }
+        queue.add(node);
+        return node;
+    }
+
+    static final class Node implements Comparable<Node> {
+        final String key;
+        final double priority;
+        final long lastAccess;
+        final long size;
+        final long frequency;
+
+        Node(String key, double priority, long lastAccess, long size, long frequency) {
+            this.key = key;
+            this.priority = priority;
+            this.lastAccess = lastAccess;
+            this.size = size;
+            this.frequency = frequency;
+        }
+
+        @Override
+        public int compareTo(Node o) {
+            int res = Double.compare(priority, o.priority);
+            if (res != 0) {
+                return res;
+            }
+            return key.compareTo(o.key);
+        }
+    }
+}
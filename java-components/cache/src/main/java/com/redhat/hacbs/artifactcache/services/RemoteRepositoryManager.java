@@ -2,10 +2,12 @@ package com.redhat.hacbs.artifactcache.services;
 
 import java.io.IOException;
 import java.net.URI;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.inject.Inject;
@@ -17,8 +19,10 @@ import org.eclipse.microprofile.config.Config;
 import com.redhat.hacbs.artifactcache.artifactwatch.RebuiltArtifacts;
 import com.redhat.hacbs.artifactcache.services.client.maven.MavenClient;
 import com.redhat.hacbs.artifactcache.services.client.ociregistry.OCIRegistryRepositoryClient;
+import com.redhat.hacbs.artifactcache.util.UpstreamExecutor;
 import com.redhat.hacbs.resources.model.v1alpha1.ImageRegistry;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
 import io.quarkus.runtime.Startup;
 
@@ -40,8 +44,26 @@ public class RemoteRepositoryManager {
     private static final String REPOSITORY = ".repository";
     private static final String INSECURE = ".insecure";
     public static final String ARTIFACT_DEPLOYMENTS = "artifact-deployments";
+    private static final String NOT_FOUND_TTL = "cache-not-found-ttl";
+    private static final Duration DEFAULT_NOT_FOUND_TTL = Duration.ofMinutes(10);
+    private static final String GROUP_ROUTING = "cache-group-routing";
+    private static final String GROUP_ROUTING_REPROBE = "cache-group-routing-reprobe";
+    private static final Duration DEFAULT_GROUP_ROUTING_REPROBE = Duration.ofHours(1);
+    private static final String OCI_TAG_TTL = "cache-oci-tag-ttl";
+    private static final Duration DEFAULT_OCI_TAG_TTL = Duration.ofMinutes(10);
     private final ConcurrentHashMap<String, List<RepositoryCache>> remoteStores = new ConcurrentHashMap<>();
 
+    /**
+     * The lookup statistics for each repository, keyed by name. A repository can be in several stores, and each one has
+     * its own cache, but they all share the same statistics.
+     */
+    private final ConcurrentHashMap<String, RepositoryStats> repositoryStats = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented every time {@link #remoteStores} changes, so anything derived from the stores knows to recompute itself.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
     @Inject
     Config config;
 
@@ -53,6 +75,12 @@ public class RemoteRepositoryManager {
     @Inject
     RecipeManager recipeManager;
 
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    UpstreamExecutor upstreamExecutor;
+
     @PostConstruct
     void setup() throws IOException, GitAPIException {
         //TODO: this is a bit of a hack
@@ -72,8 +100,9 @@ public class RemoteRepositoryManager {
                     RepositoryType.OCI_REGISTRY,
                     new OCIRegistryRepositoryClient(host + (port == 443 ? "" : ":" + port), registryOwner.get(), repository,
                             token, prependTag,
-                            insecure, rebuiltArtifacts, storageManager));
-            remoteStores.put("rebuilt", List.of(new RepositoryCache(storageManager.resolve("rebuilt"), rebuiltRepo, false)));
+                            insecure, rebuiltArtifacts, storageManager, ociTagTtl(), registry, upstreamExecutor.background()));
+            remoteStores.put("rebuilt", List.of(createCache(storageManager.resolve("rebuilt"), rebuiltRepo, false)));
+            generation.incrementAndGet();
         }
         var sharedRegistries = config.getOptionalValue("shared.registries", String.class);
         // We have a semicolon separated set of potential registries.
@@ -98,14 +127,25 @@ public class RemoteRepositoryManager {
                                 Optional.of(registry.getPrependTag()),
                                 registry.isInsecure(),
                                 rebuiltArtifacts,
-                                storageManager));
+                                storageManager,
+                                ociTagTtl(),
+                                this.registry,
+                                upstreamExecutor.background()));
 
                 remoteStores.put(name,
-                        List.of(new RepositoryCache(storageManager.resolve(name), rebuiltRepo, false)));
+                        List.of(createCache(storageManager.resolve(name), rebuiltRepo, false)));
+                generation.incrementAndGet();
             }
         }
     }
 
+    /**
+     * Returns the current generation of the remote stores, this changes whenever a store is added.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
     public List<RepositoryCache> getRemoteRepositories(String name) {
         var store = remoteStores.get(name);
         if (store == null) {
@@ -116,16 +156,41 @@ public class RemoteRepositoryManager {
                     store = new ArrayList<>();
                     if (repo != null) {
                         for (var i : repo) {
-                            store.add(new RepositoryCache(storageManager.resolve(i.getName()), i, true));
+                            store.add(createCache(storageManager.resolve(i.getName()), i, true));
                         }
                     }
                     remoteStores.put(name, store);
+                    generation.incrementAndGet();
                 }
             }
         }
         return store;
     }
 
+    private RepositoryCache createCache(StorageManager storage, Repository repository,
+            boolean overwriteExistingBytecodeMarkers) {
+        Duration notFoundTtl = config.getOptionalValue(NOT_FOUND_TTL, Duration.class).orElse(DEFAULT_NOT_FOUND_TTL);
+        RepositoryStats stats = repositoryStats.computeIfAbsent(repository.getName(),
+                name -> new RepositoryStats(name, registry));
+        RepositoryCache cache = new RepositoryCache(storage, repository, overwriteExistingBytecodeMarkers, notFoundTtl,
+                registry, upstreamExecutor.background(), stats);
+        if (repository.getType() == RepositoryType.MAVEN2
+                && config.getOptionalValue(GROUP_ROUTING, boolean.class).orElse(false)) {
+            cache.enableGroupRouting(config.getOptionalValue(GROUP_ROUTING_REPROBE, Duration.class)
+                    .orElse(DEFAULT_GROUP_ROUTING_REPROBE));
+        }
+        //a rebuilt artifact may be present in repositories that previously did not have it
+        rebuiltArtifacts.addArtifactAddedListener(cache::invalidateNotFound);
+        return cache;
+    }
+
+    /**
+     * How long the manifest digest that an image tag resolves to is cached for
+     */
+    private Duration ociTagTtl() {
+        return config.getOptionalValue(OCI_TAG_TTL, Duration.class).orElse(DEFAULT_OCI_TAG_TTL);
+    }
+
     private List<Repository> createRepository(String repo) {
         Repository existingSystemRepo = null;
         if (repo.startsWith(SYSTEM)) {
@@ -147,7 +212,8 @@ public class RemoteRepositoryManager {
             }
             Log.infof("Maven repository %s added with URI %s", repo, uri.get());
             RepositoryClient client = MavenClient.of(repo, uri.get());
-            return List.of(new Repository(repo, uri.get().toASCIIString(), RepositoryType.MAVEN2, client));
+            return List.of(new Repository(repo, uri.get().toASCIIString(), RepositoryType.MAVEN2, client,
+                    groupPrefixes(repo)));
         } else if (optType.orElse(null) == RepositoryType.OCI_REGISTRY) {
             String registry = config.getOptionalValue(STORE + repo + REGISTRY, String.class).orElse("quay.io");
             Optional<String> owner = config.getOptionalValue(STORE + repo + OWNER, String.class);
@@ -160,9 +226,11 @@ public class RemoteRepositoryManager {
                 String u = owner.get();
 
                 RepositoryClient client = new OCIRegistryRepositoryClient(registry, u, repository, token, prependTag,
-                        enableHttpAndInsecureFailover, rebuiltArtifacts, storageManager);
+                        enableHttpAndInsecureFailover, rebuiltArtifacts, storageManager, ociTagTtl(),
+                        this.registry, upstreamExecutor.background());
                 Log.infof("OCI registry %s added with owner %s", registry, u);
-                return List.of(new Repository(repo, "oci://" + registry + "/" + u, RepositoryType.OCI_REGISTRY, client));
+                return List.of(new Repository(repo, "oci://" + registry + "/" + u, RepositoryType.OCI_REGISTRY, client,
+                        groupPrefixes(repo)));
             } else {
                 Log.warnf("OCI registry %s was listed but has no owner configured and will be ignored", repo);
             }
@@ -171,6 +239,23 @@ public class RemoteRepositoryManager {
         return null;
     }
 
+    /**
+     * The groups a store hosts, if this is configured then it will not be asked for artifacts from any other groups. If
+     * it is not configured then the repository info from the build recipes is used.
+     */
+    private List<String> groupPrefixes(String repo) {
+        var configured = config.getOptionalValues(STORE + repo + PREFIXES, String.class);
+        if (configured.isPresent()) {
+            return configured.get();
+        }
+        for (var info : recipeManager.getRepositoryInfo(repo)) {
+            if (info.getGroupPrefixes() != null) {
+                return info.getGroupPrefixes();
+            }
+        }
+        return List.of();
+    }
+
     private List<Repository> createSystemRepository(String repo) {
         List<Repository> ret = new ArrayList<>();
         for (var info : recipeManager.getRepositoryInfo(repo)) {
@@ -178,7 +263,8 @@ public class RemoteRepositoryManager {
                 if (info.getUri() != null && !info.getUri().isBlank()) {
                     Log.infof("System Maven repository %s added with URI %s", repo, info.getUri());
                     RepositoryClient client = MavenClient.of(repo, new URI(info.getUri()));
-                    ret.add(new Repository(repo, info.getUri(), RepositoryType.MAVEN2, client));
+                    ret.add(new Repository(repo, info.getUri(), RepositoryType.MAVEN2, client,
+                            info.getGroupPrefixes() == null ? List.of() : info.getGroupPrefixes()));
                 }
                 if (info.getRepositories() != null) {
                     for (var i : info.getRepositories()) {
@@ -1,5 +1,7 @@
 package com.redhat.hacbs.artifactcache.services;
 
+import java.util.List;
+
 /**
  * A runtime representation of a repository or artifact store
  */
@@ -9,12 +11,23 @@ public class Repository {
     private final String uri;
     private final RepositoryType type;
     private final RepositoryClient client;
+    private final List<String> groupPrefixes;
 
     public Repository(String name, String uri, RepositoryType type, RepositoryClient client) {
+        this(name, uri, type, client, List.of());
+    }
+
+    /**
+     * @param groupPrefixes The group ids the repository hosts, e.g. {@code org.apache}, or an empty list if it may host
+     *        any group
+     */
+    public Repository(String name, String uri, RepositoryType type, RepositoryClient client, List<String> groupPrefixes) {
         this.name = name;
         this.uri = uri;
         this.type = type;
         this.client = client;
+        this.groupPrefixes = groupPrefixes.stream().map(s -> s.trim().replace('.', '/')).filter(s -> !s.isEmpty())
+                .toList();
     }
 
     public String getName() {
@@ -32,4 +45,21 @@ public class Repository {
     public RepositoryClient getClient() {
         return client;
     }
+
+    /**
+     * Returns false if the repository is known not to host the group.
+     *
+     * @param group The group in path form, e.g. {@code org/apache/commons}
+     */
+    public boolean mayContainGroup(String group) {
+        if (groupPrefixes.isEmpty()) {
+            return true;
+        }
+        for (var i : groupPrefixes) {
+            if (group.startsWith(i) && (group.length() == i.length() || group.charAt(i.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -5,25 +5,38 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import com.redhat.hacbs.classfile.tracker.ClassFileTracker;
 import com.redhat.hacbs.classfile.tracker.HashingOutputStream;
 import com.redhat.hacbs.classfile.tracker.TrackingData;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
 import io.quarkus.logging.Log;
 
 /**
@@ -36,6 +49,12 @@ public class RepositoryCache {
     public static final String HEADERS = ".hacbs-http-headers";
     public static final String ORIGINAL = "original";
     public static final String TRANSFORMED = "transformed";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    /**
+     * How long to wait for another cache that is fetching the same file before going to the origin ourselves
+     */
+    private static final long COALESCED_FETCH_TIMEOUT_MINUTES = 5;
+    private static final int MAX_CACHED_SIDECARS = 10000;
     final StorageManager storageManager;
     final StorageManager downloaded;
     final StorageManager transformed;
@@ -44,19 +63,84 @@ public class RepositoryCache {
 
     final boolean overwriteExistingBytecodeMarkers;
 
+    /**
+     * Files that this repository is known not to have
+     */
+    final NotFoundCache notFound;
+
+    final RepositoryStats stats;
+
+    final Counter originFetches;
+    final Counter coalescedFetches;
+
+    /**
+     * Runs the background part of streaming downloads
+     */
+    final Executor background;
+    final MeterRegistry registry;
+
+    /**
+     * The groups this repository has served, only present if group routing is enabled
+     */
+    volatile GroupRoutingIndex groupRouting;
+
+    /**
+     * The SHA-1 and headers of recently served files, keyed by the file that is served. This lets hits be served from
+     * an IO thread without reading the sidecar files.
+     */
+    final Map<Path, Sidecars> sidecars = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Sidecars> eldest) {
+            return size() > MAX_CACHED_SIDECARS;
+        }
+    });
+
     /**
      * Tracks in progress downloads to prevent concurrency issues
      */
     final ConcurrentMap<String, DownloadingFile> inProgressDownloads = new ConcurrentHashMap<>();
     final ConcurrentMap<String, CountDownLatch> inProgressTransformations = new ConcurrentHashMap<>();
 
-    public RepositoryCache(StorageManager storageManager, Repository repository, boolean overwriteExistingBytecodeMarkers) {
+    public RepositoryCache(StorageManager storageManager, Repository repository, boolean overwriteExistingBytecodeMarkers,
+            MeterRegistry registry, Executor background) {
+        this(storageManager, repository, overwriteExistingBytecodeMarkers, Duration.ZERO, registry, background);
+    }
+
+    /**
+     * @param notFoundTtl How long to remember that a file is not present in the repository, zero to disable
+     */
+    public RepositoryCache(StorageManager storageManager, Repository repository, boolean overwriteExistingBytecodeMarkers,
+            Duration notFoundTtl, MeterRegistry registry, Executor background) {
+        this(storageManager, repository, overwriteExistingBytecodeMarkers, notFoundTtl, registry, background,
+                new RepositoryStats(repository.getName(), registry));
+    }
+
+    /**
+     * @param stats The lookup statistics for the repository, shared with any other caches of the same repository
+     */
+    RepositoryCache(StorageManager storageManager, Repository repository, boolean overwriteExistingBytecodeMarkers,
+            Duration notFoundTtl, MeterRegistry registry, Executor background, RepositoryStats stats) {
         this.storageManager = storageManager;
         this.downloaded = storageManager.resolve(ORIGINAL);
         this.transformed = storageManager.resolve(TRANSFORMED);
         this.tempDownloads = storageManager.resolve(DOWNLOADS);
         this.repository = repository;
         this.overwriteExistingBytecodeMarkers = overwriteExistingBytecodeMarkers;
+        this.notFound = new NotFoundCache(Path.of(storageManager.path()).resolve(NotFoundCache.FILE), notFoundTtl,
+                registry);
+        storageManager.addClearListener(() -> {
+            notFound.reset();
+            sidecars.clear();
+            GroupRoutingIndex routing = groupRouting;
+            if (routing != null) {
+                routing.reset();
+            }
+        });
+        this.stats = stats;
+        this.originFetches = registry.counter("upstream_origin_fetches");
+        this.coalescedFetches = registry.counter("upstream_coalesced_fetches");
+        this.background = background;
+        this.registry = registry;
         Log.infof("Creating cache with path %s", storageManager.toString());
     }
 
@@ -64,45 +148,170 @@ public class RepositoryCache {
         return repository;
     }
 
-    public Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target,
-            boolean tracked, boolean cacheOnly) {
+    /**
+     * Enables learning which groups this repository hosts, so it can be skipped for groups it has never served.
+     *
+     * @param reprobeInterval How often to check again if a skipped group is now present
+     */
+    public void enableGroupRouting(Duration reprobeInterval) {
+        groupRouting = new GroupRoutingIndex(Path.of(storageManager.path()).resolve(GroupRoutingIndex.FILE),
+                reprobeInterval, registry);
+    }
+
+    /**
+     * Returns false if this repository can be skipped for the group, because it is only configured to host other groups,
+     * or because it has never served the group.
+     *
+     * @param probe If the lookup will go upstream, so can be used to re-probe a skipped group
+     */
+    boolean mayContainGroup(String group, boolean probe) {
+        if (!repository.mayContainGroup(group)) {
+            return false;
+        }
+        GroupRoutingIndex routing = groupRouting;
+        return routing == null || routing.mayContain(group, System.currentTimeMillis(), probe);
+    }
+
+    /**
+     * Records the result of a lookup that was allowed to go upstream
+     */
+    void lookupComplete(String group, long nanos, boolean hit) {
+        stats.record(nanos, hit);
+        GroupRoutingIndex routing = groupRouting;
+        if (routing != null) {
+            if (hit) {
+                routing.hit(group);
+            } else {
+                routing.miss(group, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Returns the file if it is already in the cache and ready to be served. This never accesses the network, transforms
+     * bytecode, waits for locks or other requests, creates files or reads the SHA-1 and header files, so it is safe to call
+     * from an IO thread.
+     * <p>
+     * If anything would need to block then an empty result is returned, and the request needs to be dispatched to a
+     * worker thread. The SHA-1 and headers of recently served files are held in memory, so hits can be served from here.
+     */
+    public Optional<ArtifactResult> getCachedArtifactFile(String group, String artifact, String version, String target,
+            boolean tracked) {
         if (tracked && target.endsWith(".jar.sha1")) {
-            var jarResult = getArtifactFile(group, artifact, version, target.substring(0, target.length() - ".sha1".length()),
-                    tracked, cacheOnly);
-            if (jarResult.isEmpty()) {
+            var jarResult = getCachedArtifactFile(group, artifact, version,
+                    target.substring(0, target.length() - ".sha1".length()), tracked);
+            return jarResult.flatMap(RepositoryCache::expectedShaResult);
+        }
+        String targetFile = targetFile(group, artifact, version, target);
+        if (inProgressDownloads.containsKey(targetFile)) {
+            return Optional.empty();
+        }
+        boolean trackedJar = tracked && targetFile.endsWith(".jar");
+        if (trackedJar && inProgressTransformations.containsKey(gav(group, artifact, version))) {
+            return Optional.empty();
+        }
+        //the tracked jar is only served once it has been transformed, the lease is null if the entry is not ready
+        try (var lease = (trackedJar ? transformed : downloaded).tryLeaseFile(targetFile)) {
+            if (lease == null) {
                 return Optional.empty();
             }
-            Optional<String> expectedSha = jarResult.get().getExpectedSha();
-            if (expectedSha.isEmpty()) {
+            Sidecars sidecars = this.sidecars.get(lease.path());
+            if (sidecars == null) {
                 return Optional.empty();
             }
-            byte[] bytes = expectedSha.get().getBytes(StandardCharsets.UTF_8);
+            InputStream in;
             try {
-                jarResult.get().close();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                in = Files.newInputStream(lease.path());
+            } catch (NoSuchFileException e) {
+                return Optional.empty();
             }
-            return Optional
-                    .of(new ArtifactResult(null, new ByteArrayInputStream(bytes), bytes.length, Optional.empty(), Map.of()));
+            return Optional.of(new ArtifactResult(lease.path(), in, Files.size(lease.path()),
+                    Optional.ofNullable(sidecars.sha()), sidecars.headers()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns true if the file is known to not be present in this repository, so it can be skipped without going to the
+     * network.
+     */
+    public boolean isKnownMissing(String group, String artifact, String version, String target, boolean tracked) {
+        if (tracked && target.endsWith(".jar.sha1")) {
+            target = target.substring(0, target.length() - ".sha1".length());
+        }
+        return notFound.isNotFound(targetFile(group, artifact, version, target));
+    }
 
+    public Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target,
+            boolean tracked, boolean cacheOnly) {
+        if (tracked && target.endsWith(".jar.sha1")) {
+            var jarResult = getArtifactFile(group, artifact, version, target.substring(0, target.length() - ".sha1".length()),
+                    tracked, cacheOnly);
+            return jarResult.flatMap(RepositoryCache::expectedShaResult);
         } else {
             //TODO: we don't really care about the policy when using standard maven repositories
-            String targetFile = group.replaceAll("\\.", File.separator) + File.separator + artifact
-                    + File.separator + version + File.separator + target;
-            return handleFile(targetFile, group.replaceAll("/", ".") + ":" + artifact + ":" + version,
+            return handleFile(targetFile(group, artifact, version, target), gav(group, artifact, version),
                     (c) -> c.getArtifactFile(group, artifact, version, target), tracked, cacheOnly);
         }
     }
 
+    /**
+     * Turns the result for a jar into a result for its SHA-1
+     */
+    private static Optional<ArtifactResult> expectedShaResult(ArtifactResult jarResult) {
+        Optional<String> expectedSha = jarResult.getExpectedSha();
+        try {
+            jarResult.close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (expectedSha.isEmpty()) {
+            return Optional.empty();
+        }
+        byte[] bytes = expectedSha.get().getBytes(StandardCharsets.UTF_8);
+        return Optional
+                .of(new ArtifactResult(null, new ByteArrayInputStream(bytes), bytes.length, Optional.empty(), Map.of()));
+    }
+
+    private static String gav(String group, String artifact, String version) {
+        return group.replaceAll("/", ".") + ":" + artifact + ":" + version;
+    }
+
+    private static String targetFile(String group, String artifact, String version, String target) {
+        return group.replaceAll("\\.", File.separator) + File.separator + artifact
+                + File.separator + version + File.separator + target;
+    }
+
     public Optional<ArtifactResult> getMetadataFile(String group, String target) {
+        String key = group + "/" + target;
+        if (notFound.isNotFound(key)) {
+            return Optional.empty();
+        }
         try {
-            return repository.getClient().getMetadataFile(group, target);
+            var result = repository.getClient().getMetadataFile(group, target);
+            if (result.isEmpty()) {
+                notFound.notFound(key);
+            }
+            return result;
         } catch (Exception e) {
             Log.debugf(e, "Failed to metadata %s/%s from %s", group, target, repository.getUri());
             return Optional.empty();
         }
     }
 
+    /**
+     * Forgets any files that were not found for the given GAV, and the metadata for its artifact.
+     * This is called when an artifact has been rebuilt, so it may now be available.
+     */
+    public void invalidateNotFound(String gav) {
+        String[] parts = gav.split(":");
+        if (parts.length < 3) {
+            return;
+        }
+        notFound.invalidate(parts[0].replace('.', '/') + "/" + parts[1] + "/");
+    }
+
     private Optional<ArtifactResult> handleFile(String targetFile, String gav,
             Function<RepositoryClient, Optional<ArtifactResult>> clientInvocation, boolean tracked, boolean cacheOnly) {
         try {
@@ -110,35 +319,48 @@ public class RepositoryCache {
             if (check != null) {
                 check.awaitReady();
             }
-            Path actual = downloaded.accessFile(targetFile);
-            Path trackedFile = transformed.accessFile(targetFile);
-            if (Files.exists(actual)) {
-                //we need to double check, there is a small window for a race here
-                //it should not matter as we do an atomic move, but better to be safe
-                check = inProgressDownloads.get(targetFile);
-                if (check != null) {
-                    check.awaitReady();
-                }
-                return handleDownloadedFile(actual, trackedFile, tracked, gav);
-            }
-            if (cacheOnly) {
-                return Optional.empty();
-            }
-            DownloadingFile newFile = new DownloadingFile(targetFile);
-            var existing = inProgressDownloads.putIfAbsent(targetFile, newFile);
-            while (existing != null) {
-                //another thread is downloading this
-                existing.awaitReady();
-                //the result may have been a miss, so we need to check the file is there
-                //if the file is not there it may mean that the sha1 was wrong
-                //so we never cache it
+            //the leases stop the directories being evicted while we are downloading or transforming the file
+            try (var actualLease = downloaded.leaseFile(targetFile);
+                    var trackedLease = transformed.leaseFile(targetFile)) {
+                Path actual = actualLease.path();
+                Path trackedFile = trackedLease.path();
                 if (Files.exists(actual)) {
+                    //we need to double check, there is a small window for a race here
+                    //it should not matter as we do an atomic move, but better to be safe
+                    check = inProgressDownloads.get(targetFile);
+                    if (check != null) {
+                        check.awaitReady();
+                    }
                     return handleDownloadedFile(actual, trackedFile, tracked, gav);
                 }
-                existing = inProgressDownloads.putIfAbsent(targetFile, newFile);
+                if (cacheOnly || notFound.isNotFound(targetFile)) {
+                    return Optional.empty();
+                }
+                DownloadingFile newFile = new DownloadingFile(targetFile);
+                var existing = inProgressDownloads.putIfAbsent(targetFile, newFile);
+                while (existing != null) {
+                    //another thread is downloading this
+                    var streaming = existing.streaming;
+                    if (streaming != null && !streaming.isDone()) {
+                        //follow the download as it is being written, rather than waiting for it to finish
+                        var follower = streaming.follower();
+                        if (follower != null) {
+                            return Optional.of(follower);
+                        }
+                        //it finished while we were joining it
+                    }
+                    existing.awaitReady();
+                    //the result may have been a miss, so we need to check the file is there
+                    //if the file is not there it may mean that the sha1 was wrong
+                    //so we never cache it
+                    if (Files.exists(actual)) {
+                        return handleDownloadedFile(actual, trackedFile, tracked, gav);
+                    }
+                    existing = inProgressDownloads.putIfAbsent(targetFile, newFile);
+                }
+                return newFile.download(clientInvocation, repository.getClient(), actual, trackedFile,
+                        tempDownloads, tracked, gav);
             }
-            return newFile.download(clientInvocation, repository.getClient(), actual, trackedFile,
-                    tempDownloads, tracked, gav);
 
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -168,6 +390,7 @@ public class RepositoryCache {
             if (Files.exists(originalSha1)) {
                 sha = Files.readString(originalSha1, StandardCharsets.UTF_8);
             }
+            sidecars.put(downloaded, new Sidecars(sha, headerMap));
             return Optional
                     .of(new ArtifactResult(downloaded, Files.newInputStream(downloaded), Files.size(downloaded),
                             Optional.ofNullable(sha),
@@ -195,9 +418,10 @@ public class RepositoryCache {
                 existing.await();
             } else {
                 Files.createDirectories(trackedJarFile.getParent());
-                try (OutputStream out = Files.newOutputStream(trackedJarFile); var in = Files.newInputStream(downloaded)) {
+                sidecars.remove(trackedJarFile);
+                try (OutputStream out = Files.newOutputStream(trackedJarFile)) {
                     HashingOutputStream hashingOutputStream = new HashingOutputStream(out);
-                    ClassFileTracker.addTrackingDataToJar(in,
+                    ClassFileTracker.addTrackingDataToJar(downloaded,
                             new TrackingData(gav, repository.getName(), Collections.emptyMap()), hashingOutputStream,
                             overwriteExistingBytecodeMarkers);
                     hashingOutputStream.close();
@@ -218,6 +442,7 @@ public class RepositoryCache {
                 if (Files.exists(instrumentedSha)) {
                     sha = Files.readString(instrumentedSha, StandardCharsets.UTF_8);
                 }
+                sidecars.put(trackedJarFile, new Sidecars(sha, headerMap));
                 return Optional
                         .of(new ArtifactResult(trackedJarFile, Files.newInputStream(trackedJarFile), Files.size(trackedJarFile),
                                 Optional.ofNullable(sha), headerMap));
@@ -240,6 +465,20 @@ public class RepositoryCache {
 
     }
 
+    /**
+     * The SHA-1 and headers that are stored alongside a cached file
+     */
+    record Sidecars(String sha, Map<String, String> headers) {
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(40);
+        for (int i = 0; i < digest.length; ++i) {
+            sb.append(Integer.toHexString((digest[i] & 0xFF) | 0x100).substring(1, 3));
+        }
+        return sb.toString();
+    }
+
     /**
      * Represents a file that is in the process of being downloaded into the cache
      */
@@ -249,6 +488,11 @@ public class RepositoryCache {
         boolean ready = false;
         Throwable problem;
 
+        /**
+         * Set if the download is being streamed to the client while it is written
+         */
+        volatile StreamingDownload streaming;
+
         DownloadingFile(String key) {
             this.key = key;
         }
@@ -275,7 +519,52 @@ public class RepositoryCache {
                 StorageManager downloadTempDir,
                 boolean tracked,
                 String gav) {
+            UpstreamFetches.Fetch upstream = null;
+            boolean streamed = false;
             try {
+                if (repository.getType() == RepositoryType.MAVEN2) {
+                    upstream = new UpstreamFetches.Fetch(repository.getUri(), key);
+                    var existing = UpstreamFetches.start(upstream);
+                    if (existing != null) {
+                        //another cache is fetching the same file from the same upstream
+                        upstream = null;
+                        var fetched = existing.await(COALESCED_FETCH_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+                        if (fetched != null && fetched.file() == null) {
+                            coalescedFetches.increment();
+                            notFound.notFound(key);
+                            return Optional.empty();
+                        } else if (fetched != null && linkFetched(fetched, downloadTarget)) {
+                            coalescedFetches.increment();
+                            return handleDownloadedFile(downloadTarget, trackedFile, tracked, gav);
+                        }
+                        //the other fetch failed, or we could not use its result, so we go to the origin ourselves
+                    }
+                }
+                originFetches.increment();
+                if (!tracked || !key.endsWith(".jar")) {
+                    //the file is served exactly as downloaded, so we can send it to the client while it is written
+                    Path partFile = Files.createTempFile(downloadTempDir.accessDirectory("downloads"), "download", ".part");
+                    StreamingDownload streaming = new StreamingDownload(partFile);
+                    UpstreamFetches.Fetch fetch = upstream;
+                    streaming.start(background,
+                            () -> pump(streaming, clientInvocation, repositoryClient, downloadTarget, fetch));
+                    //from here the pump is responsible for completing the download
+                    streamed = true;
+                    if (streaming.awaitStarted().isEmpty()) {
+                        return Optional.empty();
+                    }
+                    this.streaming = streaming;
+                    var follower = streaming.follower();
+                    if (follower != null) {
+                        return Optional.of(follower);
+                    }
+                    //the download finished before it could be followed, e.g. because it was small or ran on this thread
+                    awaitReady();
+                    if (Files.exists(downloadTarget)) {
+                        return handleDownloadedFile(downloadTarget, trackedFile, tracked, gav);
+                    }
+                    throw new IOException("Failed to cache " + downloadTarget + " from " + repositoryClient.getName());
+                }
                 Optional<ArtifactResult> result = clientInvocation.apply(repositoryClient);
                 if (result.isPresent()) {
                     MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -295,14 +584,8 @@ public class RepositoryCache {
                             Log.errorf(e, "Failed to close HTTP stream");
                         }
                     }
+                    String hash = hex(md.digest());
                     if (result.get().getExpectedSha().isPresent()) {
-                        byte[] digest = md.digest();
-                        StringBuilder sb = new StringBuilder(40);
-                        for (int i = 0; i < digest.length; ++i) {
-                            sb.append(Integer.toHexString((digest[i] & 0xFF) | 0x100).substring(1, 3));
-                        }
-                        String hash = sb.toString();
-
                         if (!hash.equalsIgnoreCase(result.get().getExpectedSha().get())) {
                             Log.error("Filed to cache " + downloadTarget + " from " + repositoryClient.getName()
                                     + " calculated sha '" + hash
@@ -310,9 +593,8 @@ public class RepositoryCache {
                             if (tracked) {
                                 Path tempTransformedFile = Files.createTempFile(downloadTempDir.accessDirectory("downloads"),
                                         "transformed", ".part");
-                                try (var inFromFile = Files.newInputStream(tempFile);
-                                        var transformedOut = Files.newOutputStream(tempTransformedFile)) {
-                                    ClassFileTracker.addTrackingDataToJar(inFromFile,
+                                try (var transformedOut = Files.newOutputStream(tempTransformedFile)) {
+                                    ClassFileTracker.addTrackingDataToJar(tempFile,
                                             new TrackingData(gav, repository.getName(), Collections.emptyMap()),
                                             transformedOut, overwriteExistingBytecodeMarkers);
                                 }
@@ -342,37 +624,182 @@ public class RepositoryCache {
                         }
                     }
 
-                    Files.createDirectories(downloadTarget.getParent());
-                    Files.move(tempFile, downloadTarget, StandardCopyOption.ATOMIC_MOVE);
-
-                    if (result.get().getExpectedSha().isPresent()) {
-                        Files.writeString(downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + SHA_1),
-                                result.get().getExpectedSha().get(), StandardCharsets.UTF_8);
-                    }
-                    Properties p = new Properties();
-                    for (var e : result.get().getMetadata().entrySet()) {
-                        p.put(e.getKey().toLowerCase(), e.getValue());
-                    }
-                    p.remove("content-length"); //use the actual on disk length
-                    try (OutputStream out = Files.newOutputStream(
-                            downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + HEADERS))) {
-                        p.store(out, "");
+                    commit(result.get(), tempFile, hash, downloadTarget);
+                    if (upstream != null) {
+                        upstream.complete(new UpstreamFetches.Result(downloadTarget, hash));
                     }
                     return handleDownloadedFile(downloadTarget, trackedFile, tracked, gav);
                 }
+                if (upstream != null) {
+                    upstream.complete(UpstreamFetches.Result.NOT_FOUND);
+                }
+                notFound.notFound(key);
                 return Optional.empty();
             } catch (Throwable e) {
                 synchronized (this) {
                     problem = e;
                 }
-                Log.errorf(e, "Failed to download artifact %s from %s", downloadTarget, repositoryClient);
-                return Optional.empty();
+                //this must not look like a miss, as the file may well be there
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                throw new RuntimeException("Failed to download artifact " + downloadTarget + " from " + repositoryClient, e);
             } finally {
-                inProgressDownloads.remove(key);
+                if (!streamed) {
+                    complete(upstream);
+                }
+            }
+        }
+
+        /**
+         * Copies the upstream response to the part file of a streaming download, and then adds it to the cache if the SHA-1
+         * matches. This normally runs in the background, so it has its own lease, and its own request context unless it
+         * was run on the calling thread.
+         */
+        private void pump(StreamingDownload streaming,
+                Function<RepositoryClient, Optional<ArtifactResult>> clientInvocation,
+                RepositoryClient repositoryClient,
+                Path downloadTarget,
+                UpstreamFetches.Fetch upstream) {
+            ManagedContext requestContext = Arc.container().requestContext();
+            //if this is running on the requesting thread then the context belongs to the request, and must be left alone
+            boolean activated = !requestContext.isActive();
+            if (activated) {
+                requestContext.activate();
+            }
+            try (var lease = downloaded.leaseFile(key)) {
+                Optional<ArtifactResult> result = clientInvocation.apply(repositoryClient);
+                if (result.isEmpty()) {
+                    if (upstream != null) {
+                        upstream.complete(UpstreamFetches.Result.NOT_FOUND);
+                    }
+                    notFound.notFound(key);
+                    streaming.started(null);
+                    streaming.finished(null);
+                    return;
+                }
+                streaming.started(result.get());
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                try (InputStream in = result.get().getData();
+                        OutputStream out = Files.newOutputStream(streaming.partFile)) {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    int r;
+                    while ((r = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, r);
+                        md.update(buffer, 0, r);
+                        streaming.written(r);
+                    }
+                }
+                //readers have everything now, they don't need to wait for it to be committed
+                streaming.finished(null);
+                //the part file is about to be moved, so later readers need to use the committed file
+                streaming.seal();
+                String hash = hex(md.digest());
+                Optional<String> expectedSha = result.get().getExpectedSha();
+                if (expectedSha.isPresent() && !hash.equalsIgnoreCase(expectedSha.get())) {
+                    //the data has already been sent, so all we can do is not cache it
+                    Log.error("Filed to cache " + downloadTarget + " from " + repositoryClient.getName()
+                            + " calculated sha '" + hash
+                            + "' did not match expected '" + expectedSha.get() + "'");
+                    return;
+                }
+                commit(result.get(), streaming.partFile, hash, downloadTarget);
+                if (upstream != null) {
+                    upstream.complete(new UpstreamFetches.Result(downloadTarget, hash));
+                }
+            } catch (Throwable e) {
                 synchronized (this) {
-                    ready = true;
-                    notifyAll();
+                    problem = e;
+                }
+                streaming.finished(e);
+                Log.errorf(e, "Failed to download artifact %s from %s", downloadTarget, repositoryClient);
+            } finally {
+                streaming.seal();
+                try {
+                    Files.deleteIfExists(streaming.partFile);
+                } catch (IOException e) {
+                    Log.errorf(e, "Failed to delete %s", streaming.partFile);
+                }
+                if (activated) {
+                    requestContext.terminate();
+                }
+                complete(upstream);
+            }
+        }
+
+        /**
+         * Moves a downloaded file into the cache, along with its SHA-1 and headers
+         */
+        private void commit(ArtifactResult result, Path tempFile, String hash, Path downloadTarget) throws IOException {
+            sidecars.remove(downloadTarget);
+            downloaded.storeBlob(tempFile, hash, downloadTarget);
+
+            if (result.getExpectedSha().isPresent()) {
+                Files.writeString(downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + SHA_1),
+                        result.getExpectedSha().get(), StandardCharsets.UTF_8);
+            }
+            Properties p = new Properties();
+            for (var e : result.getMetadata().entrySet()) {
+                p.put(e.getKey().toLowerCase(), e.getValue());
+            }
+            p.remove("content-length"); //use the actual on disk length
+            try (OutputStream out = Files.newOutputStream(
+                    downloadTarget.getParent().resolve(downloadTarget.getFileName().toString() + HEADERS))) {
+                p.store(out, "");
+            }
+        }
+
+        /**
+         * Marks the download as finished and wakes up anything waiting for it
+         */
+        private void complete(UpstreamFetches.Fetch upstream) {
+            if (upstream != null) {
+                //if the fetch was not already completed then it failed
+                upstream.complete(null);
+            }
+            inProgressDownloads.remove(key);
+            synchronized (this) {
+                ready = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Links a file that was fetched by another cache into this cache, along with its SHA-1 and headers.
+         *
+         * @return false if the file could not be linked, e.g. because it has already been evicted
+         */
+        private boolean linkFetched(UpstreamFetches.Result fetched, Path downloadTarget) {
+            Path source = fetched.file();
+            Path temp = null;
+            sidecars.remove(downloadTarget);
+            try {
+                Files.createDirectories(downloadTarget.getParent());
+                for (var sidecar : List.of(SHA_1, HEADERS)) {
+                    Path sourceSidecar = source.resolveSibling(source.getFileName() + sidecar);
+                    if (Files.exists(sourceSidecar)) {
+                        Files.copy(sourceSidecar, downloadTarget.resolveSibling(downloadTarget.getFileName() + sidecar),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                temp = tempDownloads.accessDirectory("downloads").resolve("coalesced-" + UUID.randomUUID() + ".part");
+                try {
+                    Files.createLink(temp, source);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.copy(source, temp);
+                }
+                downloaded.storeBlob(temp, fetched.sha1(), downloadTarget);
+                return true;
+            } catch (IOException e) {
+                Log.debugf(e, "Unable to link %s to %s", source, downloadTarget);
+                if (temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException ex) {
+                        Log.errorf(ex, "Failed to delete %s", temp);
+                    }
                 }
+                return false;
             }
         }
     }
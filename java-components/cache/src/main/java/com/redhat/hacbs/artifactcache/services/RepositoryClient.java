@@ -13,7 +13,10 @@ public interface RepositoryClient {
      * @param artifact The artifact
      * @param version The version
      * @param target The target file
-     * @return empty if the file is not present, otherwise the file data
+     * @return empty if the repository does not have the file, otherwise the file data
+     * @throws RuntimeException if the repository could not be queried, e.g. because of a network error or an unexpected
+     *         status code. An empty result is remembered as the file not being present, so it must only be returned when
+     *         the repository definitely does not have the file.
      */
     Optional<ArtifactResult> getArtifactFile(String group, String artifact, String version, String target);
 
@@ -22,7 +25,9 @@ public interface RepositoryClient {
      *
      * @param group The group
      * @param target The target file
-     * @return empty if the file is not present, otherwise the file data
+     * @return empty if the repository does not have the file, otherwise the file data
+     * @throws RuntimeException if the repository could not be queried, in the same way as
+     *         {@link #getArtifactFile(String, String, String, String)}
      */
     Optional<ArtifactResult> getMetadataFile(String group, String target);
 
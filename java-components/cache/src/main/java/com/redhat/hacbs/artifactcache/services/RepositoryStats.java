@@ -0,0 +1,67 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Lookup statistics for a repository, used to decide when to speculatively query the next repository.
+ * <p>
+ * The lookup time is tracked as an exponentially weighted moving average of the mean and the mean deviation, in the same
+ * way TCP estimates round trip times. The mean plus four deviations is used as an estimate of a high percentile of the
+ * lookup time, if a lookup takes longer than that it is probably slow rather than just unlucky.
+ * <p>
+ * The same repository can be used by several caches, they share one instance so the metrics are only registered once.
+ */
+final class RepositoryStats {
+
+    private static final double MEAN_WEIGHT = 0.125;
+    private static final double DEVIATION_WEIGHT = 0.25;
+    private static final int MIN_SAMPLES = 10;
+    static final long DEFAULT_DELAY = TimeUnit.SECONDS.toNanos(1);
+    static final long MIN_DELAY = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private double mean;
+    private double deviation;
+    private long samples;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    RepositoryStats(String repository, MeterRegistry registry) {
+        hits = registry.counter("repository_lookup_hits", "repository", repository);
+        misses = registry.counter("repository_lookup_misses", "repository", repository);
+        Gauge.builder("repository_lookup_time_ewma", this, s -> s.getMean() / 1_000_000)
+                .tag("repository", repository)
+                .baseUnit("milliseconds")
+                .register(registry);
+    }
+
+    synchronized void record(long nanos, boolean hit) {
+        if (samples == 0) {
+            mean = nanos;
+            deviation = nanos / 2.0;
+        } else {
+            deviation += DEVIATION_WEIGHT * (Math.abs(nanos - mean) - deviation);
+            mean += MEAN_WEIGHT * (nanos - mean);
+        }
+        samples++;
+        (hit ? hits : misses).increment();
+    }
+
+    synchronized double getMean() {
+        return mean;
+    }
+
+    /**
+     * How long to wait for a lookup before also asking the next repository.
+     */
+    synchronized long getHedgeDelay() {
+        if (samples < MIN_SAMPLES) {
+            return DEFAULT_DELAY;
+        }
+        return Math.max(MIN_DELAY, (long) (mean + 4 * deviation));
+    }
+}
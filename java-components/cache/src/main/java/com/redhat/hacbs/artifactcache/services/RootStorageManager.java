@@ -1,23 +1,36 @@
 package com.redhat.hacbs.artifactcache.services;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileStore;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Function;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.ToDoubleFunction;
 import java.util.stream.Stream;
 
@@ -39,27 +52,69 @@ import io.quarkus.runtime.ExecutorRecorder;
 /**
  * Manager class that deals with freeing up disk space if the disk usage gets too high.
  * <p>
- * It uses a read write lock to make sure that nothing is accessing files in the process of being deleted.
+ * Entries are protected by a fixed set of striped read write locks, accessing an entry takes the read lock and deleting it
+ * takes the write lock, so nothing can access files in the process of being deleted. Eviction never waits for a lock, if
+ * an entry is in use it is just skipped, so the cache does not pause while space is being freed. Callers that need an
+ * entry to stay around for longer than a single access (e.g. while it is being downloaded) can take out a {@link Lease}.
  * <p>
- * This basically means that the cache will pause for a short period of time while entries are cleaned.
+ * Downloaded files are stored once in a content addressed blob store, keyed by their SHA-1, and are hard linked into
+ * the per repository directories. This means the same artifact served by multiple repositories only takes up space
+ * once. Each directory records the blobs it links to, so when it is deleted only those blobs need to be checked to see
+ * if they are no longer linked from anywhere.
  */
 @Singleton
 public class RootStorageManager implements StorageManager {
 
     private static final String MARKER = "cache.directory.marker";
+    private static final String BLOBS = ".blobs";
+    static final String BLOB_LINKS = ".hacbs-blob-links";
     public static final int DELETE_TIMEOUT = 10000;
+    private static final int MAX_EVICTION_PASSES = 5;
+    private static final int LOCK_STRIPES = 256;
+    private static final long INDEX_SAVE_INTERVAL = 10 * 60000;
 
     final Path path;
+    final Path blobs;
+    private final boolean hardLinksSupported;
+
+    /**
+     * Blobs are linked under the read lock, and orphaned blobs are only removed under the write lock. This prevents a blob
+     * from being removed in the window between it being moved into the store and the first link being created.
+     */
+    private final ReadWriteLock blobLock = new ReentrantReadWriteLock();
+
+    /**
+     * Blobs that were linked from a deleted directory, and so may no longer be linked from anywhere.
+     */
+    final Set<Path> orphanCandidates = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Entry locks, the stripe is picked based on the entry hash.
+     */
+    private final ReadWriteLock[] entryLocks = createLocks();
 
-    private static final long DELETE_IN_PROGRESS = -1;
     private final int deleteBatchSize;
 
     /**
-     * Lock map used to manage timestamps.
+     * The current entries, keyed by their path relative to the cache root.
+     */
+    final ConcurrentMap<String, CacheEntry> inUseMap = new ConcurrentHashMap<>();
+
+    /**
+     * Entries that have been created since their size was last measured.
+     */
+    final Set<String> unsizedEntries = ConcurrentHashMap.newKeySet();
+
+    final StorageIndex index;
+    final EvictionPolicy evictionPolicy;
+
+    private final List<ClearListener> clearListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * If the index was loaded, if it was not then the cache directory needs to be scanned to find the entries.
      */
-    final ConcurrentMap<String, AtomicLong> inUseMap = new ConcurrentHashMap<>();
+    private volatile boolean indexLoaded;
 
-    private static final Function<String, AtomicLong> FACTORY = (s) -> new AtomicLong(System.currentTimeMillis());
     private final FileStore fileStore;
     final double highWater;
     final double lowWater;
@@ -70,6 +125,7 @@ public class RootStorageManager implements StorageManager {
 
     private final Counter cacheFreeCount;
     private final Counter deletedEntries;
+    private final Counter deduplicatedFiles;
 
     /**
      * This is an approximation, to deal with situations were we are not on our own volume.
@@ -87,11 +143,16 @@ public class RootStorageManager implements StorageManager {
             @ConfigProperty(name = "cache-disk-percentage-high-water") double highWater,
             @ConfigProperty(name = "cache-disk-percentage-low-water") double lowWater,
             @ConfigProperty(name = "cache-delete-batch-size", defaultValue = "30") int deleteBatchSize,
+            @ConfigProperty(name = "cache-eviction-policy", defaultValue = EvictionPolicy.LRU) String evictionPolicy,
             MeterRegistry registry) throws IOException {
+        this.evictionPolicy = EvictionPolicy.create(evictionPolicy);
         this.highWater = highWater;
         this.lowWater = lowWater;
         this.path = path;
         Files.createDirectories(path);
+        this.blobs = path.resolve(BLOBS);
+        this.hardLinksSupported = supportsHardLinks(path);
+        this.index = new StorageIndex(path);
         this.fileStore = Files.getFileStore(path);
         highWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - highWater));
         lowWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - lowWater));
@@ -111,6 +172,7 @@ public class RootStorageManager implements StorageManager {
         });
         cacheFreeCount = registry.counter("cache_free_count");
         deletedEntries = registry.counter("cache_deleted_entries");
+        deduplicatedFiles = registry.counter("cache_deduplicated_files");
     }
 
     RootStorageManager(FileStore fileStore,
@@ -118,11 +180,24 @@ public class RootStorageManager implements StorageManager {
             double highWater,
             double lowWater,
             int deleteBatchSize) throws IOException {
+        this(fileStore, path, highWater, lowWater, deleteBatchSize, new LruEvictionPolicy());
+    }
+
+    RootStorageManager(FileStore fileStore,
+            Path path,
+            double highWater,
+            double lowWater,
+            int deleteBatchSize,
+            EvictionPolicy evictionPolicy) throws IOException {
+        this.evictionPolicy = evictionPolicy;
         this.highWater = highWater;
         this.lowWater = lowWater;
         this.fileStore = fileStore;
         this.path = path;
         Files.createDirectories(path);
+        this.blobs = path.resolve(BLOBS);
+        this.hardLinksSupported = supportsHardLinks(path);
+        this.index = new StorageIndex(path);
         highWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - highWater));
         lowWaterFreeSpace = (long) (fileStore.getTotalSpace() * (1 - lowWater));
         this.deleteBatchSize = deleteBatchSize;
@@ -131,6 +206,8 @@ public class RootStorageManager implements StorageManager {
                 formatSize(lowWaterFreeSpace), formatSize(fileStore.getTotalSpace()));
         cacheFreeCount = new NoopCounter(new Meter.Id("cache_free_count", Tags.empty(), null, null, Meter.Type.COUNTER));
         deletedEntries = new NoopCounter(new Meter.Id("cache_deleted_entries", Tags.empty(), null, null, Meter.Type.COUNTER));
+        deduplicatedFiles = new NoopCounter(
+                new Meter.Id("cache_deduplicated_files", Tags.empty(), null, null, Meter.Type.COUNTER));
     }
 
     @PostConstruct
@@ -142,54 +219,208 @@ public class RootStorageManager implements StorageManager {
                 checkSpace();
             }
         }, 60000, 60000);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                saveIndex();
+            }
+        }, INDEX_SAVE_INTERVAL, INDEX_SAVE_INTERVAL);
+        loadIndex();
         ExecutorRecorder.getCurrent().execute(this::initialLoad);
     }
 
     @PreDestroy
     void destroy() {
         timer.cancel();
+        saveIndex();
+        index.close();
     }
 
+    /**
+     * Loads the persistent index, this gives us the full set of entries without having to scan the cache directory.
+     */
+    void loadIndex() {
+        var entries = index.load();
+        if (entries == null) {
+            Log.infof("No cache index found, the cache directory will be scanned");
+            return;
+        }
+        indexLoaded = true;
+        for (var e : entries.entrySet()) {
+            CacheEntry entry = new CacheEntry(e.getValue().lastAccess());
+            entry.size = e.getValue().size();
+            if (inUseMap.putIfAbsent(e.getKey(), entry) == null) {
+                evictionPolicy.accessed(e.getKey(), entry.lastAccess, entry.accessCount);
+                evictionPolicy.sized(e.getKey(), entry.size);
+                if (entry.size == 0) {
+                    unsizedEntries.add(e.getKey());
+                }
+            }
+        }
+        Log.infof("Loaded %s entries from the cache index", entries.size());
+    }
+
+    /**
+     * Compacts the persistent index into a snapshot of the current entries.
+     */
+    void saveIndex() {
+        index.write(() -> {
+            Map<String, StorageIndex.Entry> entries = new HashMap<>();
+            for (var e : inUseMap.entrySet()) {
+                entries.put(e.getKey(), new StorageIndex.Entry(e.getValue().lastAccess, e.getValue().size));
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Reconciles the in memory entries with what is actually on disk. This runs in the background after the index has
+     * been loaded.
+     * <p>
+     * If the index was loaded then this only checks that each entry still exists, and measures the entries whose size
+     * was not known, it does not look at the rest of the cache directory. Entries that exist on disk but are missing from
+     * the index are added when they are next accessed. If there is no index then the whole cache directory is scanned to
+     * find the entries.
+     */
     void initialLoad() {
-        //there map be initial data in the cache dir, we load it into the in-memory map to allow it to be deleted
-        //if the cache needs to be cleared
-        AtomicInteger count = new AtomicInteger();
-        AtomicLong ourSize = new AtomicLong();
+        if (indexLoaded) {
+            reconcile();
+        } else {
+            scan();
+        }
+    }
+
+    private void reconcile() {
+        long startTime = System.currentTimeMillis();
+        int removed = 0;
+        for (var e : new ArrayList<>(inUseMap.entrySet())) {
+            if (!Files.exists(path.resolve(e.getKey()).resolve(MARKER)) && removeIfNotAccessed(e, startTime)) {
+                removed++;
+            }
+        }
+        measureEntries();
+        long ourSize = 0;
+        for (var e : inUseMap.values()) {
+            ourSize += e.size;
+        }
         try {
+            //this over counts files that are shared between entries, which means the overhead is under estimated
+            //so the cache may delete more than it needs to, but never less
+            checkOverhead(ourSize);
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to check existing disk usage");
+        }
+        Log.infof("Reconciliation of existing entries completed, %s entries, %s were removed", inUseMap.size(), removed);
+    }
+
+    /**
+     * Removes an entry that was not found on disk, as long as it has not been accessed since we started looking.
+     */
+    private boolean removeIfNotAccessed(Map.Entry<String, CacheEntry> e, long startTime) {
+        if (e.getValue().lastAccess >= startTime) {
+            return false;
+        }
+        Lock lock = entryLock(e.getKey()).writeLock();
+        if (lock.tryLock()) {
+            try {
+                if (e.getValue().lastAccess < startTime && inUseMap.remove(e.getKey(), e.getValue())) {
+                    unsizedEntries.remove(e.getKey());
+                    evictionPolicy.removed(e.getKey());
+                    index.removed(e.getKey());
+                    return true;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    private void checkOverhead(long ourSize) throws IOException {
+        long otherSpace = fileStore.getTotalSpace() - ourSize;
+        long overhead = otherSpace - fileStore.getUsableSpace();
+        if (overhead > fileStore.getTotalSpace() * 0.05d) { //if the overhead is more than 5%
+            Log.infof("Detected existing disk usage of %s, recalculating ", formatSize(overhead));
+            highWaterFreeSpace = (long) ((fileStore.getTotalSpace() - overhead) * (1 - highWater));
+            lowWaterFreeSpace = (long) ((fileStore.getTotalSpace() - overhead) * (1 - lowWater));
+            Log.infof(
+                    "Cache requires at least %s space free, and will delete to the low water mark of %s. Total disk size is %s.",
+                    formatSize(highWaterFreeSpace),
+                    formatSize(lowWaterFreeSpace), formatSize(fileStore.getTotalSpace()));
+        }
+    }
 
+    private void scan() {
+        long startTime = System.currentTimeMillis();
+        Map<String, Long> found = new HashMap<>();
+        AtomicLong ourSize = new AtomicLong();
+        //files that are linked from multiple places only use the space once
+        Set<Object> linkedFiles = new HashSet<>();
+        try {
+            Deque<String> currentEntry = new ArrayDeque<>();
             Files.walkFileTree(path, new SimpleFileVisitor<>() {
                 @Override
                 public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
                     Path marker = dir.resolve(MARKER);
                     if (Files.exists(marker)) {
-                        count.incrementAndGet();
-                        inUseMap.putIfAbsent(path.relativize(dir).toString(),
-                                new AtomicLong(Files.getLastModifiedTime(dir).toMillis()));
+                        String key = path.relativize(dir).toString();
+                        found.put(key, 0L);
+                        long lastModified = Files.getLastModifiedTime(dir).toMillis();
+                        if (inUseMap.putIfAbsent(key, new CacheEntry(lastModified)) == null) {
+                            evictionPolicy.accessed(key, lastModified, 1);
+                        }
+                        currentEntry.push(key);
+                    } else {
+                        //files belong to the closest parent entry
+                        currentEntry.push(currentEntry.isEmpty() ? "" : currentEntry.peek());
                     }
                     return FileVisitResult.CONTINUE;
                 }
 
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    currentEntry.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    ourSize.addAndGet(Files.size(file));
+                    long size = attrs.size();
+                    if (!hardLinksSupported || attrs.fileKey() == null || linkCount(file) == 1
+                            || linkedFiles.add(attrs.fileKey())) {
+                        ourSize.addAndGet(size);
+                    }
+                    if (file.startsWith(blobs)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String key = currentEntry.peek();
+                    if (key != null && !key.isEmpty()) {
+                        found.merge(key, size, Long::sum);
+                    }
                     return FileVisitResult.CONTINUE;
                 }
             });
-            long otherSpace = fileStore.getTotalSpace() - ourSize.get();
-            long overhead = otherSpace - fileStore.getUsableSpace();
-            if (overhead > fileStore.getTotalSpace() * 0.05d) { //if the overhead is more than 5%
-                Log.infof("Detected existing disk usage of %s, recalculating ", formatSize(overhead));
-                highWaterFreeSpace = (long) ((fileStore.getTotalSpace() - overhead) * (1 - highWater));
-                lowWaterFreeSpace = (long) ((fileStore.getTotalSpace() - overhead) * (1 - lowWater));
-                Log.infof(
-                        "Cache requires at least %s space free, and will delete to the low water mark of %s. Total disk size is %s.",
-                        formatSize(highWaterFreeSpace),
-                        formatSize(lowWaterFreeSpace), formatSize(fileStore.getTotalSpace()));
+            for (var e : found.entrySet()) {
+                CacheEntry entry = inUseMap.get(e.getKey());
+                if (entry != null) {
+                    entry.size = e.getValue();
+                    evictionPolicy.sized(e.getKey(), e.getValue());
+                    unsizedEntries.remove(e.getKey());
+                }
             }
+            for (var e : new ArrayList<>(inUseMap.entrySet())) {
+                //entries that are not on disk, and have not been accessed since we started, have been deleted
+                if (!found.containsKey(e.getKey())) {
+                    removeIfNotAccessed(e, startTime);
+                }
+            }
+            saveIndex();
+            indexLoaded = true;
+            checkOverhead(ourSize.get());
         } catch (IOException e) {
             Log.errorf("Failed to scan existing files", e);
         } finally {
-            Log.infof("Initial load of existing entries completed, found %s", count.get());
+            Log.infof("Reconciliation of existing entries completed, found %s", found.size());
         }
 
     }
@@ -204,30 +435,41 @@ public class RootStorageManager implements StorageManager {
     @Override
     public Path accessDirectory(String relative) throws IOException {
         checkRelative(relative);
+        Lock lock = entryLock(relative).readLock();
+        acquire(lock, relative);
+        try {
+            access(relative);
+        } finally {
+            lock.unlock();
+        }
+        return path.resolve(relative);
+    }
 
-        //deletion locks, if this is being deleted it is set to -1
-        //otherwise we just use CAS to update it
-        //deletion will notifyAll on the AtomicLong before it is removed
-        long timeOut = System.currentTimeMillis() + DELETE_TIMEOUT;
-        for (;;) {
-            if (System.currentTimeMillis() > timeOut) {
-                throw new IOException("Timed out waiting for entry deletion: " + relative);
-            }
-            AtomicLong current = inUseMap.computeIfAbsent(relative, FACTORY);
-            long val = current.get();
-            if (val == -1) {
-                try {
-                    current.wait(DELETE_TIMEOUT);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Records an access to an entry, creating it if required. This must be called with the entries read lock held.
+     */
+    private CacheEntry access(String relative) throws IOException {
+        long time = System.currentTimeMillis();
+        CacheEntry entry = inUseMap.get(relative);
+        if (entry == null) {
+            CacheEntry created = new CacheEntry(time);
+            entry = inUseMap.putIfAbsent(relative, created);
+            if (entry == null) {
+                evictionPolicy.accessed(relative, time, created.accessCount);
+                //this may be a new entry, or one that is on disk but was missing from the index
+                index.added(relative, time, 0);
+                unsizedEntries.add(relative);
+                entry = created;
             } else {
-                if (current.compareAndSet(val, System.currentTimeMillis())) {
-                    break;
-                }
+                entry.accessed(time);
             }
+        } else {
+            //the policy is only updated when this comes up as an eviction candidate
+            entry.accessed(time);
+        }
+        if (entry.materialized) {
+            return entry;
         }
-
         Path dir = path.resolve(relative);
         if (!Files.exists(dir)) {
             Files.createDirectories(dir);
@@ -236,10 +478,33 @@ public class RootStorageManager implements StorageManager {
         }
         Path marker = dir.resolve(MARKER);
         if (!Files.exists(marker)) {
-            Files.writeString(marker, Long.toString(System.currentTimeMillis()));
+            Files.writeString(marker, Long.toString(time));
+        }
+        entry.materialized = true;
+        return entry;
+    }
+
+    private ReadWriteLock entryLock(String relative) {
+        return entryLocks[Math.floorMod(relative.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static void acquire(Lock lock, String relative) throws IOException {
+        try {
+            if (!lock.tryLock(DELETE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for entry deletion: " + relative);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for entry deletion: " + relative, e);
         }
-        return dir;
+    }
 
+    private static ReadWriteLock[] createLocks() {
+        ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; ++i) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        return locks;
     }
 
     private void checkRelative(String relative) {
@@ -265,6 +530,52 @@ public class RootStorageManager implements StorageManager {
         return filePath;
     }
 
+    @Override
+    public Lease leaseFile(String relative) throws IOException {
+        if (!relative.contains("/")) {
+            throw new IllegalArgumentException("Cannot access files in the root of the storage manager: " + relative);
+        }
+        Path filePath = path.resolve(relative);
+        String dir = path.relativize(filePath.getParent()).toString();
+        checkRelative(dir);
+        Lock lock = entryLock(dir).readLock();
+        acquire(lock, dir);
+        CacheEntry entry;
+        try {
+            entry = access(dir);
+            entry.leases.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        return new EntryLease(filePath, entry);
+    }
+
+    @Override
+    public Lease tryLeaseFile(String relative) {
+        if (!relative.contains("/")) {
+            throw new IllegalArgumentException("Cannot access files in the root of the storage manager: " + relative);
+        }
+        Path filePath = path.resolve(relative);
+        String dir = path.relativize(filePath.getParent()).toString();
+        checkRelative(dir);
+        Lock lock = entryLock(dir).readLock();
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            //only entries that are known to be on disk, anything else needs access() which can touch the file system
+            CacheEntry entry = inUseMap.get(dir);
+            if (entry == null || !entry.materialized) {
+                return null;
+            }
+            entry.accessed(System.currentTimeMillis());
+            entry.leases.incrementAndGet();
+            return new EntryLease(filePath, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public StorageManager resolve(String relative) {
         checkRelative(relative);
@@ -276,23 +587,133 @@ public class RootStorageManager implements StorageManager {
         return new RelativeStorageManager(relative);
     }
 
+    @Override
+    public void storeBlob(Path source, String sha1, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        if (!hardLinksSupported) {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        Path blob = blobs.resolve(sha1.substring(0, 2)).resolve(sha1);
+        //we link to a temp name and then move it, so the target appears atomically
+        Path link = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".link");
+        blobLock.readLock().lock();
+        try {
+            Files.createDirectories(blob.getParent());
+            if (Files.exists(blob)) {
+                Files.delete(source);
+                deduplicatedFiles.increment();
+            } else {
+                Files.move(source, blob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            try {
+                Files.createLink(link, blob);
+            } catch (IOException e) {
+                //this can happen if the blob has hit the file systems link limit
+                Log.debugf(e, "Failed to link %s, copying instead", blob);
+                Files.copy(blob, link);
+            }
+            Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+            //record the link, so the blob can be checked when the directory is deleted
+            Files.writeString(target.resolveSibling(BLOB_LINKS), target.getFileName() + " " + sha1 + "\n",
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } finally {
+            blobLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes blobs that were linked from deleted directories, and are no longer linked into any other directory.
+     */
+    void deleteOrphanedBlobs() {
+        if (!hardLinksSupported || orphanCandidates.isEmpty()) {
+            return;
+        }
+        int count = 0;
+        for (var blob : new ArrayList<>(orphanCandidates)) {
+            orphanCandidates.remove(blob);
+            if (deleteIfOrphaned(blob)) {
+                count++;
+            }
+        }
+        Log.infof("Deleted %s orphaned blobs", count);
+    }
+
+    /**
+     * Checks every blob in the store, and removes the ones that are no longer linked into any directory. This is only
+     * needed when directories have been removed without going through the storage manager.
+     */
+    void sweepOrphanedBlobs() {
+        if (!hardLinksSupported || !Files.isDirectory(blobs)) {
+            return;
+        }
+        int count = 0;
+        try (Stream<Path> dirs = Files.list(blobs)) {
+            for (var dir : dirs.toList()) {
+                try (Stream<Path> files = Files.list(dir)) {
+                    for (var blob : files.toList()) {
+                        if (deleteIfOrphaned(blob)) {
+                            count++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to delete orphaned blobs");
+        }
+        orphanCandidates.clear();
+        Log.infof("Deleted %s orphaned blobs", count);
+    }
+
+    private boolean deleteIfOrphaned(Path blob) {
+        blobLock.writeLock().lock();
+        try {
+            if (Files.exists(blob) && linkCount(blob) == 1) {
+                Files.delete(blob);
+                return true;
+            }
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to delete orphaned blob %s", blob);
+        } finally {
+            blobLock.writeLock().unlock();
+        }
+        return false;
+    }
+
+    /**
+     * Deletes an entry directory, noting any blobs it linked to as possible orphans.
+     */
+    private long deleteEntry(Path dir) {
+        return safeDeleteRecursive(dir, sha1 -> orphanCandidates.add(blobs.resolve(sha1.substring(0, 2)).resolve(sha1)));
+    }
+
     @Override
     public void delete(String relative) {
         checkRelative(relative);
-        //note that this is not lock safe
-        //this is only for explicit deletes
-        //if this is called while the file
-        //is being downloaded the result is undefined
-        Path dir = path.resolve(relative);
-        if (Files.exists(dir)) {
-            safeDeleteRecursive(dir);
+        //explicit deletes wait for current accesses to finish, but do not respect leases
+        //if this is called while the file is being downloaded the download will fail
+        Lock lock = entryLock(relative).writeLock();
+        lock.lock();
+        try {
+            Path dir = path.resolve(relative);
+            if (Files.exists(dir)) {
+                deleteEntry(dir);
+            }
+            forget(relative);
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /**
+     * Removes an entry from the in memory state, without touching the file system.
+     */
+    private void forget(String relative) {
         var existing = inUseMap.remove(relative);
+        unsizedEntries.remove(relative);
+        evictionPolicy.removed(relative);
         if (existing != null) {
-            existing.set(System.currentTimeMillis());
-            synchronized (existing) {
-                existing.notifyAll();
-            }
+            index.removed(relative);
         }
     }
 
@@ -306,12 +727,15 @@ public class RootStorageManager implements StorageManager {
         clear("");
     }
 
+    @Override
+    public void addClearListener(Runnable listener) {
+        clearListeners.add(new ClearListener("", listener));
+    }
+
     void clear(String path) {
-        var it = inUseMap.entrySet().iterator();
-        while (it.hasNext()) {
-            var e = it.next();
-            if (e.getKey().startsWith(path)) {
-                delete(e.getKey());
+        for (var key : new ArrayList<>(inUseMap.keySet())) {
+            if (key.startsWith(path)) {
+                delete(key);
             }
         }
 
@@ -321,19 +745,37 @@ public class RootStorageManager implements StorageManager {
         } catch (IOException e) {
             Log.errorf("Failed to clear path %s", e);
         } finally {
+            //entries under this path that were created while we were deleting are gone from disk as well
+            //entries outside the path are left alone
+            for (var key : new ArrayList<>(inUseMap.keySet())) {
+                if (key.startsWith(path)) {
+                    Lock lock = entryLock(key).writeLock();
+                    lock.lock();
+                    try {
+                        forget(key);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+            //the whole path has been removed, so anything could have been orphaned
+            sweepOrphanedBlobs();
             Log.infof("Cache Free Completed");
-            HashMap<String, AtomicLong> vals = new HashMap<>(inUseMap);
-            inUseMap.clear();
-            for (var i : vals.entrySet()) {
-                i.getValue().set(1);
-                synchronized (i.getValue()) {
-                    i.getValue().notifyAll();
+            saveIndex();
+            for (var listener : clearListeners) {
+                if (listener.path().startsWith(path)) {
+                    try {
+                        listener.listener().run();
+                    } catch (RuntimeException e) {
+                        Log.errorf(e, "Clear listener failed for %s", listener.path());
+                    }
                 }
             }
         }
     }
 
     void checkSpace() {
+        measureEntries();
         try {
             if (fileStore.getUsableSpace() < highWaterFreeSpace) {
                 freeSpace();
@@ -344,59 +786,142 @@ public class RootStorageManager implements StorageManager {
     }
 
     private void freeSpace() throws IOException {
+        long usableSpace = fileStore.getUsableSpace();
         Log.infof("Disk usage is too high, currently %s/%s is free, trying to delete entries to get this to %s",
-                formatSize(fileStore.getUsableSpace()), formatSize(fileStore.getTotalSpace()), formatSize(lowWaterFreeSpace));
+                formatSize(usableSpace), formatSize(fileStore.getTotalSpace()), formatSize(lowWaterFreeSpace));
         cacheFreeCount.increment();
         try {
-            TreeMap<Long, List<String>> entries = new TreeMap<>();
-            for (var e : inUseMap.entrySet()) {
-                entries.computeIfAbsent(e.getValue().get(), (s) -> new ArrayList<>()).add(e.getKey());
-            }
-            int batchCount = 0;
-            var it = entries.entrySet().iterator();
-            //free till we hit low water
-            while (it.hasNext() && fileStore.getUsableSpace() < lowWaterFreeSpace) {
-                Log.infof("Deleting batch %s of %s entries", batchCount++, deleteBatchSize);
-                int count = 0;
-                //delete in chunks of batch size
-                while (count++ < deleteBatchSize && it.hasNext()) {
-                    var toDel = it.next();
-                    long expect = toDel.getKey();
-                    for (var file : toDel.getValue()) {
-                        AtomicLong lock = inUseMap.get(file);
-                        if (lock == null) {
-                            continue;
-                        }
-                        if (lock.compareAndSet(expect, DELETE_IN_PROGRESS)) {
-                            inUseMap.remove(file);
-                            try {
-                                safeDeleteRecursive(path.resolve(file));
-                            } catch (Exception e) {
-                                Log.errorf(e, "Failed to clear %s", file);
-                            } finally {
-                                synchronized (lock) {
-                                    lock.notifyAll();
-                                }
-                            }
-
-                        } else {
-                            Log.infof("Unable to delete %s as it is in use", file);
-                        }
-                    }
+            //entries that were deleted by an explicit delete may have left blobs behind
+            deleteOrphanedBlobs();
+            long toFree = lowWaterFreeSpace - fileStore.getUsableSpace();
+            int pass = 0;
+            //we use the tracked entry sizes to decide how much to delete, and only check the actual free space
+            //at the end of each pass, as shared blobs mean the estimate may not be exact
+            while (toFree > 0 && pass++ < MAX_EVICTION_PASSES) {
+                long freed = evict(toFree);
+                //the space used by linked files is only reclaimed once the blob is gone as well
+                deleteOrphanedBlobs();
+                if (freed == 0) {
+                    break;
                 }
+                toFree = lowWaterFreeSpace - fileStore.getUsableSpace();
             }
         } finally {
             Log.infof("Cache Free Completed");
         }
     }
 
+    /**
+     * Evicts entries in the order determined by the eviction policy, until approximately the requested number of
+     * bytes have been deleted.
+     *
+     * @return The number of bytes that were deleted
+     */
+    private long evict(long toFree) {
+        long freed = 0;
+        int count = 0;
+        var it = evictionPolicy.victims();
+        while (freed < toFree && it.hasNext()) {
+            var candidate = it.next();
+            String file = candidate.key();
+            //we never wait for an entry, if it is being accessed then it is not a good eviction candidate anyway
+            Lock lock = entryLock(file).writeLock();
+            if (!lock.tryLock()) {
+                Log.infof("Unable to delete %s as it is in use", file);
+                continue;
+            }
+            try {
+                CacheEntry entry = inUseMap.get(file);
+                if (entry == null) {
+                    evictionPolicy.removed(file);
+                    continue;
+                }
+                if (entry.lastAccess != candidate.lastAccess()) {
+                    //accessed since the policy last saw it, let the policy know so it can be repositioned
+                    evictionPolicy.accessed(file, entry.lastAccess, entry.accessCount);
+                    continue;
+                }
+                if (entry.leases.get() > 0) {
+                    Log.infof("Unable to delete %s as it is leased", file);
+                    continue;
+                }
+                inUseMap.remove(file);
+                unsizedEntries.remove(file);
+                index.removed(file);
+                evictionPolicy.evicted(file);
+                freed += deleteEntry(path.resolve(file));
+                deletedEntries.increment();
+                if (++count % deleteBatchSize == 0) {
+                    Log.infof("Deleted %s entries, %s of %s freed", count, formatSize(freed), formatSize(toFree));
+                }
+            } catch (Exception e) {
+                Log.errorf(e, "Failed to clear %s", file);
+            } finally {
+                lock.unlock();
+            }
+        }
+        Log.infof("Deleted %s entries, %s freed", count, formatSize(freed));
+        return freed;
+    }
+
+    /**
+     * Measures the size of entries that have been created since the sizes were last calculated.
+     */
+    void measureEntries() {
+        for (var key : new ArrayList<>(unsizedEntries)) {
+            unsizedEntries.remove(key);
+            Path dir = path.resolve(key);
+            CacheEntry entry = inUseMap.get(key);
+            if (entry == null || !Files.isDirectory(dir)) {
+                continue;
+            }
+            try {
+                long size = entrySize(dir);
+                entry.size = size;
+                evictionPolicy.sized(key, size);
+                index.added(key, entry.lastAccess, size);
+            } catch (IOException | UncheckedIOException e) {
+                Log.debugf(e, "Failed to measure %s", dir);
+            }
+        }
+    }
+
+    /**
+     * Calculates the size of an entry, not including sub directories that are entries in their own right.
+     */
+    static long entrySize(Path dir) throws IOException {
+        long size = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (var f : files.toList()) {
+                if (Files.isDirectory(f)) {
+                    if (!Files.exists(f.resolve(MARKER))) {
+                        size += entrySize(f);
+                    }
+                } else if (Files.exists(f)) {
+                    size += Files.size(f);
+                }
+            }
+        }
+        return size;
+    }
+
     /**
      * Deletes a directory recursivly, but won't decend into sub directories with their own locks
      *
      * @param file
+     * @return The approximate amount of space that will be reclaimed
      */
-    public static void safeDeleteRecursive(final Path file) {
+    public static long safeDeleteRecursive(final Path file) {
+        return safeDeleteRecursive(file, sha1 -> {
+        });
+    }
+
+    /**
+     * @param blobLinks Called with the SHA-1 of every blob that the deleted files were linked to
+     */
+    private static long safeDeleteRecursive(final Path file, Consumer<String> blobLinks) {
         try {
+            long freed = 0;
             boolean canDelete = true;
             if (Files.isDirectory(file)) {
                 try (Stream<Path> files = Files.list(file)) {
@@ -407,18 +932,76 @@ public class RootStorageManager implements StorageManager {
                                 continue;
                             }
                         }
-                        safeDeleteRecursive(f);
+                        freed += safeDeleteRecursive(f, blobLinks);
+                    }
+                }
+            } else {
+                if (file.getFileName().toString().equals(BLOB_LINKS)) {
+                    for (var line : Files.readAllLines(file)) {
+                        int space = line.lastIndexOf(' ');
+                        if (space > 0 && line.length() - space > 2) {
+                            blobLinks.accept(line.substring(space + 1));
+                        }
                     }
                 }
+                if (reclaimable(file)) {
+                    freed += Files.size(file);
+                }
             }
             if (canDelete) {
                 Files.delete(file);
             }
+            return freed;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    static int linkCount(Path file) throws IOException {
+        return (Integer) Files.getAttribute(file, "unix:nlink");
+    }
+
+    /**
+     * If a file is only linked from its blob then deleting it will free the space once orphaned blobs are removed,
+     * if it is shared with other repositories then nothing is freed.
+     */
+    private static boolean reclaimable(Path file) throws IOException {
+        try {
+            return linkCount(file) <= 2;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    static boolean supportsHardLinks(Path path) {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            Log.infof("Link counts are not available for %s, content addressed storage is disabled", path);
+            return false;
+        }
+        Path file = null;
+        Path link = null;
+        try {
+            file = Files.createTempFile(path, "link-test", ".tmp");
+            link = file.resolveSibling(file.getFileName() + ".link");
+            Files.createLink(link, file);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            Log.infof("Hard links are not supported in %s, content addressed storage is disabled", path);
+            return false;
+        } finally {
+            try {
+                if (link != null) {
+                    Files.deleteIfExists(link);
+                }
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                Log.errorf(e, "Failed to delete link test files");
+            }
+        }
+    }
+
     public static void deleteRecursive(final Path file) {
         try {
             if (Files.isDirectory(file)) {
@@ -457,11 +1040,26 @@ public class RootStorageManager implements StorageManager {
             return RootStorageManager.this.accessFile(relativePath + relative);
         }
 
+        @Override
+        public Lease leaseFile(String relative) throws IOException {
+            return RootStorageManager.this.leaseFile(relativePath + relative);
+        }
+
+        @Override
+        public Lease tryLeaseFile(String relative) {
+            return RootStorageManager.this.tryLeaseFile(relativePath + relative);
+        }
+
         @Override
         public StorageManager resolve(String relative) {
             return new RelativeStorageManager(relativePath + relative);
         }
 
+        @Override
+        public void storeBlob(Path source, String sha1, Path target) throws IOException {
+            RootStorageManager.this.storeBlob(source, sha1, target);
+        }
+
         @Override
         public void delete(String relative) {
             RootStorageManager.this.delete(relativePath + relative);
@@ -478,6 +1076,11 @@ public class RootStorageManager implements StorageManager {
             RootStorageManager.this.clear(relativePath);
         }
 
+        @Override
+        public void addClearListener(Runnable listener) {
+            clearListeners.add(new ClearListener(relativePath, listener));
+        }
+
         @Override
         public String toString() {
             return "RelativeStorageManager{" +
@@ -486,6 +1089,32 @@ public class RootStorageManager implements StorageManager {
         }
     }
 
+    private record ClearListener(String path, Runnable listener) {
+    }
+
+    private static final class EntryLease implements Lease {
+        private final Path path;
+        private final CacheEntry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private EntryLease(Path path, CacheEntry entry) {
+            this.path = path;
+            this.entry = entry;
+        }
+
+        @Override
+        public Path path() {
+            return path;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                entry.leases.decrementAndGet();
+            }
+        }
+    }
+
     /**
      * Turns bytes into a human readable format
      */
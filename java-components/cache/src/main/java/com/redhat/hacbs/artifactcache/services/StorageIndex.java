@@ -0,0 +1,234 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import io.quarkus.logging.Log;
+
+/**
+ * A persistent index of the entries managed by {@link RootStorageManager}.
+ * <p>
+ * This is an append only journal of entry additions and removals, which is compacted into a snapshot of the current
+ * state whenever it is saved. Loading the index is O(entries) and does not touch the rest of the cache directory, so
+ * eviction has complete data straight after a restart while the file system is reconciled in the background. An entry
+ * is journaled again whenever its size is measured, so the last record for an entry has its most recent size.
+ */
+class StorageIndex {
+
+    static final String INDEX_FILE = ".cache-index";
+    private static final int VERSION = 1;
+    private static final byte ADD = 'A';
+    private static final byte REMOVE = 'R';
+
+    final Path file;
+    private DataOutputStream journal;
+
+    /**
+     * Records journaled while a snapshot is being written, these are replayed into the snapshot so they are not lost.
+     */
+    private List<Record> pending;
+
+    StorageIndex(Path root) {
+        this.file = root.resolve(INDEX_FILE);
+    }
+
+    /**
+     * Reads the index from disk.
+     *
+     * @return The entries, keyed by their path relative to the cache root, or null if there is no usable index
+     */
+    synchronized Map<String, Entry> load() {
+        Map<String, Entry> ret = new HashMap<>();
+        if (!Files.exists(file)) {
+            return null;
+        }
+        //the length of the file up to the end of the last complete record
+        long complete = -1;
+        try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+                DataInputStream in = new DataInputStream(counting)) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                Log.warnf("Ignoring cache index %s with unknown version %s", file, version);
+                return null;
+            }
+            for (;;) {
+                complete = counting.count;
+                byte type = in.readByte();
+                String key = in.readUTF();
+                if (type == ADD) {
+                    ret.put(key, new Entry(in.readLong(), in.readLong()));
+                } else {
+                    ret.remove(key);
+                }
+            }
+        } catch (EOFException e) {
+            //end of the journal, if the last record was only partially written it is ignored, and cut off so that new
+            //records are not appended after it
+            try {
+                if (complete < 0) {
+                    Files.delete(file);
+                    return null;
+                }
+                if (Files.size(file) > complete) {
+                    Log.warnf("Discarding a partially written record at the end of cache index %s", file);
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(complete);
+                    }
+                }
+            } catch (IOException ex) {
+                Log.errorf(ex, "Failed to truncate cache index %s", file);
+                return null;
+            }
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to read cache index %s", file);
+            return null;
+        }
+        return ret;
+    }
+
+    synchronized void added(String key, long lastAccess, long size) {
+        journal(new Record(ADD, key, lastAccess, size));
+    }
+
+    synchronized void removed(String key) {
+        journal(new Record(REMOVE, key, 0, 0));
+    }
+
+    private void journal(Record record) {
+        if (pending != null) {
+            pending.add(record);
+        }
+        try {
+            DataOutputStream out = journal();
+            record.write(out);
+            out.flush();
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to write to cache index %s", file);
+        }
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the entries.
+     * <p>
+     * The snapshot is taken and written without holding the lock, so the cache is not blocked while this happens.
+     * Anything journaled in the meantime is appended to the snapshot before it replaces the journal.
+     */
+    void write(Supplier<Map<String, Entry>> snapshot) {
+        synchronized (this) {
+            if (pending != null) {
+                //another snapshot is already being written
+                return;
+            }
+            pending = new ArrayList<>();
+        }
+        Path temp = file.resolveSibling(INDEX_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(VERSION);
+                for (var e : snapshot.get().entrySet()) {
+                    new Record(ADD, e.getKey(), e.getValue().lastAccess(), e.getValue().size()).write(out);
+                }
+            }
+            synchronized (this) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(temp, StandardOpenOption.APPEND)))) {
+                    for (var record : pending) {
+                        record.write(out);
+                    }
+                }
+                close();
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to write cache index %s", file);
+        } finally {
+            synchronized (this) {
+                pending = null;
+            }
+        }
+    }
+
+    synchronized void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.errorf(e, "Failed to close cache index %s", file);
+            }
+            journal = null;
+        }
+    }
+
+    private DataOutputStream journal() throws IOException {
+        if (journal == null) {
+            boolean existing = Files.exists(file);
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            if (!existing) {
+                journal.writeInt(VERSION);
+            }
+        }
+        return journal;
+    }
+
+    record Entry(long lastAccess, long size) {
+    }
+
+    /**
+     * Counts the bytes read, so the position of the last complete record is known.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private record Record(byte type, String key, long lastAccess, long size) {
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(key);
+            if (type == ADD) {
+                out.writeLong(lastAccess);
+                out.writeLong(size);
+            }
+        }
+    }
+}
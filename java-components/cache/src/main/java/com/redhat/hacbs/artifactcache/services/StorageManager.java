@@ -24,6 +24,24 @@ public interface StorageManager {
      */
     Path accessFile(String relative) throws IOException;
 
+    /**
+     * Get access to the provided file, in the same way as {@link #accessFile(String)}. The files parent directory will
+     * not be deleted to free disk space until the returned lease is closed.
+     *
+     * @param relative The file to access
+     * @return A lease on the file, that must be closed when the caller is done with it
+     */
+    Lease leaseFile(String relative) throws IOException;
+
+    /**
+     * Leases a file in the same way as {@link #leaseFile(String)}, but only if its directory is already in use and this
+     * can be done without blocking. Nothing is created, so this is safe to call from an IO thread.
+     *
+     * @param relative The file to access
+     * @return A lease on the file, or null if the directory is not ready or is currently being deleted
+     */
+    Lease tryLeaseFile(String relative);
+
     /**
      * Resolves a new relative storage manager. The underlying manager is still the same, but paths are resolved relative to a
      * different path.
@@ -33,10 +51,39 @@ public interface StorageManager {
      */
     StorageManager resolve(String relative);
 
+    /**
+     * Moves a file into the shared content addressed blob store, and makes it available at the target location.
+     * <p>
+     * If a file with identical contents has already been stored (e.g. the same jar downloaded from a different
+     * repository) then the existing copy is shared via a hard link and the source file is deleted. If the underlying
+     * file system does not support hard links then this is just an atomic move.
+     *
+     * @param source The file to store, this will be moved or deleted
+     * @param sha1 The SHA-1 of the file contents
+     * @param target The location the file should be available at
+     */
+    void storeBlob(Path source, String sha1, Path target) throws IOException;
+
     void delete(String relative);
 
     String path();
 
     void clear();
 
+    /**
+     * Registers a callback that is run after this storage, or a storage that contains it, has been cleared. Anything that
+     * keeps state about the files in the storage, or holds them open, needs to reset itself.
+     */
+    void addClearListener(Runnable listener);
+
+    /**
+     * A lease on a file, that stops its directory from being evicted while it is open.
+     */
+    interface Lease extends AutoCloseable {
+
+        Path path();
+
+        @Override
+        void close();
+    }
 }
@@ -0,0 +1,166 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+/**
+ * A download that is served while it is still being written to disk.
+ * <p>
+ * The upstream response is copied to a part file by a background thread, and readers follow the part file as it grows.
+ * This means the first bytes are sent to the client as soon as they arrive, rather than once the whole file is on disk
+ * and verified. Any number of readers can follow the same download, and it will be completed even if they all go away.
+ */
+final class StreamingDownload {
+
+    final Path partFile;
+    private Optional<ArtifactResult> upstream;
+    private long written;
+    private boolean done;
+    private boolean noMoreFollowers;
+    private Throwable failure;
+
+    StreamingDownload(Path partFile) {
+        this.partFile = partFile;
+    }
+
+    /**
+     * Runs the task that copies the upstream response to the part file. If the executor runs it on the calling thread
+     * then the whole response is written, and the part file committed or deleted, before this returns. In that case
+     * there is nothing left to follow, and {@link #follower()} returns null.
+     */
+    void start(Executor executor, Runnable pump) {
+        executor.execute(pump);
+    }
+
+    /**
+     * Called once the upstream response has been received.
+     *
+     * @param result The upstream result, or null if the file was not found
+     */
+    synchronized void started(ArtifactResult result) {
+        upstream = Optional.ofNullable(result);
+        notifyAll();
+    }
+
+    synchronized void written(int count) {
+        written += count;
+        notifyAll();
+    }
+
+    synchronized void finished(Throwable failure) {
+        this.failure = failure;
+        done = true;
+        notifyAll();
+    }
+
+    synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Stops new readers from following the download. This must be called before the part file is moved or deleted.
+     * Readers that are already following it keep their open channel, so they can still read all of it.
+     */
+    synchronized void seal() {
+        noMoreFollowers = true;
+    }
+
+    /**
+     * Waits for the upstream response.
+     *
+     * @return The upstream result, or an empty optional if the file was not found
+     */
+    synchronized Optional<ArtifactResult> awaitStarted() throws IOException {
+        while (upstream == null && !done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (upstream != null) {
+            return upstream;
+        }
+        throw new IOException("Failed to download " + partFile, failure);
+    }
+
+    /**
+     * Returns a result that reads the download from the start, blocking for more data until it is complete.
+     *
+     * @return The result, or null if the download has already finished and the part file is gone, in which case the
+     *         committed file should be served instead
+     */
+    ArtifactResult follower() throws IOException {
+        ArtifactResult result = awaitStarted().orElseThrow();
+        FileChannel channel;
+        synchronized (this) {
+            if (noMoreFollowers) {
+                return null;
+            }
+            //the channel is opened before the part file can be moved or deleted, so it is always readable
+            channel = FileChannel.open(partFile, StandardOpenOption.READ);
+        }
+        return new ArtifactResult(null, new Follower(channel), result.getSize(), result::getExpectedSha,
+                result.getMetadata());
+    }
+
+    private final class Follower extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+
+        private Follower(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            int r = read(data, 0, 1);
+            return r == -1 ? -1 : data[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (StreamingDownload.this) {
+                while (position >= written && !done) {
+                    try {
+                        StreamingDownload.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (position >= written) {
+                    if (failure != null) {
+                        throw new IOException("Failed to download " + partFile, failure);
+                    }
+                    return -1;
+                }
+                len = (int) Math.min(len, written - position);
+            }
+            int r = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (r < 0) {
+                throw new IOException("Unexpected end of " + partFile);
+            }
+            position += r;
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
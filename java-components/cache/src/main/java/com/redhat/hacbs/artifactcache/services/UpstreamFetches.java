@@ -0,0 +1,93 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide single flight for upstream fetches.
+ * <p>
+ * {@link RepositoryCache} makes sure a file is only downloaded once per cache, however the same upstream repository
+ * can be used by several caches (e.g. when it is configured under different store names). Fetches are keyed by the
+ * repository URI and the file path, only the first request goes to the origin, and concurrent requests from other caches
+ * wait for it and then link the downloaded file into their own storage.
+ */
+final class UpstreamFetches {
+
+    private static final ConcurrentMap<Key, Fetch> IN_PROGRESS = new ConcurrentHashMap<>();
+
+    private UpstreamFetches() {
+    }
+
+    /**
+     * Registers a fetch as in progress.
+     *
+     * @return The fetch that is already in progress for the same file, or null if the provided fetch should go to the origin
+     */
+    static Fetch start(Fetch fetch) {
+        return IN_PROGRESS.putIfAbsent(fetch.key, fetch);
+    }
+
+    private record Key(String repositoryUri, String target) {
+    }
+
+    /**
+     * The outcome of a successful fetch. If the file is null then the upstream repository does not have it.
+     *
+     * @param file The downloaded file
+     * @param sha1 The SHA-1 of the downloaded file
+     */
+    record Result(Path file, String sha1) {
+        static final Result NOT_FOUND = new Result(null, null);
+    }
+
+    static final class Fetch {
+
+        private final Key key;
+        private boolean done;
+        private Result result;
+
+        Fetch(String repositoryUri, String target) {
+            this.key = new Key(repositoryUri, target);
+        }
+
+        /**
+         * Waits for the fetch to complete.
+         *
+         * @return The result, or null if the fetch failed or did not complete in time
+         */
+        Result await(long timeout, TimeUnit unit) {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (!done) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return result;
+            }
+        }
+
+        /**
+         * Completes the fetch and wakes up all the waiters. Only the first call has any effect.
+         */
+        void complete(Result result) {
+            IN_PROGRESS.remove(key, this);
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.result = result;
+                done = true;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -1,21 +1,30 @@
 package com.redhat.hacbs.artifactcache.services.client.maven;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
+import org.apache.http.HttpHeaders;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.eclipse.microprofile.config.ConfigProvider;
 
 import com.redhat.hacbs.artifactcache.services.ArtifactResult;
 import com.redhat.hacbs.artifactcache.services.RepositoryClient;
 import com.redhat.hacbs.artifactcache.util.RequestCleanup;
+import com.redhat.hacbs.artifactcache.util.UpstreamExecutor;
+import com.redhat.hacbs.artifactcache.util.UpstreamTransport;
 
 import io.quarkus.arc.Arc;
 import io.quarkus.logging.Log;
@@ -24,27 +33,37 @@ import io.quarkus.vertx.http.runtime.CurrentVertxRequest;
 public class MavenClient implements RepositoryClient {
 
     public static final String SHA_1 = ".sha1";
+    static final String X_CHECKSUM_SHA1 = "X-Checksum-Sha1";
+    private static final Pattern SHA1_HEX = Pattern.compile("[0-9a-fA-F]{40}");
+    private static final Pattern ETAG_SHA1 = Pattern.compile("(?:W/)?\"?\\{SHA1\\{([0-9a-fA-F]{40})}}\"?");
+
+    /**
+     * How long to wait for the checksum once the file has been read. The checksum request starts with the download, so
+     * it has normally finished by then.
+     */
+    private static final long CHECKSUM_TIMEOUT_SECONDS = 60;
+
     private final String name;
     private final URI uri;
 
     private final String stringUri;
-    final CloseableHttpClient remoteClient;
+    final UpstreamTransport transport;
     final CurrentVertxRequest currentVertxRequest;
 
     final RequestCleanup requestCleanup;
+    final Executor background;
 
     final int networkRetries;
 
     public MavenClient(String name, URI uri, int networkRetries) {
         this.networkRetries = networkRetries;
-        int threads = ConfigProvider.getConfig().getOptionalValue("quarkus.thread.pool.max.threads", Integer.class).orElse(10);
-        remoteClient = HttpClientBuilder.create().disableAutomaticRetries().setMaxConnPerRoute(threads).setMaxConnTotal(threads)
-                .build();
+        transport = UpstreamTransport.instance();
         this.name = name;
         this.uri = uri;
         this.stringUri = uri.toASCIIString();
         currentVertxRequest = Arc.container().instance(CurrentVertxRequest.class).get();
         requestCleanup = RequestCleanup.instance();
+        background = UpstreamExecutor.instance().background();
     }
 
     public static MavenClient of(String name, URI uri) {
@@ -62,88 +81,206 @@ public class MavenClient implements RepositoryClient {
             String target) {
         Log.debugf("Retrieving artifact %s/%s/%s/%s from repo %s at %s", group, artifact, version, target, name, uri);
         String targetUri = uri + "/" + group + "/" + artifact + "/" + version + "/" + target;
-        return downloadMavenFile(group, artifact, version, target, targetUri);
+        return downloadMavenFile(group, artifact, version, target, targetUri, !target.endsWith(SHA_1));
 
     }
 
     private Optional<ArtifactResult> downloadMavenFile(String group, String artifact, String version, String target,
-            String targetUri) {
+            String targetUri, boolean checksum) {
         long backoff = 200;
         IOException networkException = null;
         int retryCount = 0;
-        String sha1 = null;
-        while (retryCount <= networkRetries) {
+        //the checksum is fetched at the same time as the file, it is only needed once the file has been read
+        Sha1Fetch sha1 = null;
+        if (checksum) {
+            sha1 = new Sha1Fetch(group, artifact, version, target, targetUri);
+            //if the file is never read to the end then the request must not outlive it
+            requestCleanup.addResource(sha1);
+        }
+        boolean checksumNeeded = false;
+        try {
+            while (retryCount <= networkRetries) {
 
-            CloseableHttpResponse response = null;
-            try {
-                //this must be first, having it lower down can create a deadlock in some situations
-                //if all the connections are being used to download the main artifacts then there are
-                //none in the pool to download the shas
+                CloseableHttpResponse response = null;
                 try {
-                    if (!target.endsWith(SHA_1) && sha1 == null) {
-                        try (var hash = remoteClient.execute(new HttpGet(
-                                targetUri + SHA_1))) {
-                            if (hash.getStatusLine().getStatusCode() == 404) {
-                                hash.getEntity().getContent().readAllBytes(); //read the 404 page
-                                Log.debugf("Could not find sha1 hash for artifact %s/%s/%s/%s from repo %s at %s", group,
-                                        artifact,
-                                        version,
-                                        target, name, uri);
-                            } else {
-                                sha1 = new String(hash.getEntity().getContent().readAllBytes(), StandardCharsets.UTF_8).trim();
-                                //older maven version would deploy sha files with extra stuff after the sha
-                                if (sha1.contains(" ")) {
-                                    sha1 = sha1.split(" ")[0];
-                                }
-                            }
+                    try {
+                        HttpGet httpGet = new HttpGet(targetUri);
+                        response = transport.execute(httpGet);
+                        requestCleanup.addResource(response);
+                    } catch (UpstreamTransport.CircuitOpenException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        //if we have a network issues we might want to retry
+                        networkException = e;
+                        retryCount++;
+                        if (retryCount <= networkRetries) {
+                            Thread.sleep(backoff);
+                            backoff += backoff;
                         }
+                        continue;
                     }
-                    HttpGet httpGet = new HttpGet(targetUri);
-                    response = remoteClient.execute(httpGet);
-                    requestCleanup.addResource(response);
-                } catch (IOException e) {
-                    //if we have a network issues we might want to retry
-                    networkException = e;
-                    retryCount++;
-                    if (retryCount <= networkRetries) {
-                        Thread.sleep(backoff);
-                        backoff += backoff;
+                    if (response.getStatusLine().getStatusCode() == 404) {
+                        Log.infof("404 downloading artifact %s", targetUri);
+                        closeResponse(response);
+                        return Optional.empty();
+                    }
+                    if (response.getStatusLine().getStatusCode() != 200) {
+                        closeResponse(response);
+                        //only a 404 means the file is not there, anything else is an error so must not be cached as a miss
+                        throw new IOException("Unexpected status code: " + response.getStatusLine().getStatusCode()
+                                + " downloading " + target + " from " + targetUri);
+                    }
+                    Map<String, String> headers = new HashMap<>();
+                    for (var i : response.getAllHeaders()) {
+                        headers.put(i.getName(), i.getValue());
+                    }
+                    Log.debugf("Found artifact %s/%s/%s/%s from repo %s at %s", group, artifact, version, target, name,
+                            uri);
+                    Supplier<Optional<String>> expectedSha = Optional::empty;
+                    if (sha1 != null) {
+                        expectedSha = headerSha(response);
+                        if (expectedSha == null) {
+                            expectedSha = sha1::await;
+                            checksumNeeded = true;
+                        }
+                    }
+                    return Optional
+                            .of(new ArtifactResult(null,
+                                    new CloseDelegateInputStream(response.getEntity().getContent(), response),
+                                    response.getEntity().getContentLength(),
+                                    expectedSha, headers));
+                } catch (Exception e) {
+                    try {
+                        if (response != null) {
+                            response.close();
+                        }
+                    } catch (IOException ex) {
+                        //ignore
                     }
-                    continue;
+                    throw new RuntimeException(e);
                 }
-                if (response.getStatusLine().getStatusCode() == 404) {
-                    Log.infof("404 downloading artifact %s", targetUri);
-                    closeResponse(response);
+            }
+            throw new RuntimeException(networkException);
+        } finally {
+            if (sha1 != null && !checksumNeeded) {
+                //the file was not found, the download failed or the repository sent the checksum as a header
+                sha1.cancel();
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-1 the repository sent as a header, or null if it did not send one.
+     */
+    private static Supplier<Optional<String>> headerSha(CloseableHttpResponse response) {
+        var checksum = response.getFirstHeader(X_CHECKSUM_SHA1);
+        if (checksum != null && SHA1_HEX.matcher(checksum.getValue().trim()).matches()) {
+            Optional<String> result = Optional.of(checksum.getValue().trim().toLowerCase());
+            return () -> result;
+        }
+        var etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null) {
+            //Nexus based repositories, including Maven Central, send the SHA-1 as an ETag of the form "{SHA1{<sha>}}"
+            var matcher = ETAG_SHA1.matcher(etag.getValue());
+            if (matcher.matches()) {
+                Optional<String> result = Optional.of(matcher.group(1).toLowerCase());
+                return () -> result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A request for the checksum of a file that runs alongside the download of the file. It is aborted if it turns out
+     * not to be needed.
+     */
+    private final class Sha1Fetch implements Closeable {
+
+        final CompletableFuture<Optional<String>> result;
+        volatile boolean cancelled;
+        volatile HttpGet current;
+
+        Sha1Fetch(String group, String artifact, String version, String target, String targetUri) {
+            result = CompletableFuture.supplyAsync(() -> fetchSha1(this, group, artifact, version, target, targetUri),
+                    background);
+        }
+
+        Optional<String> await() {
+            try {
+                return result.get(CHECKSUM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new RuntimeException(e);
+            } catch (TimeoutException e) {
+                cancel();
+                throw new RuntimeException("Timed out waiting for sha1", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to download sha1", e.getCause());
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            result.cancel(false);
+            HttpGet request = current;
+            if (request != null) {
+                request.abort();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!result.isDone()) {
+                cancel();
+            }
+        }
+    }
+
+    private Optional<String> fetchSha1(Sha1Fetch fetch, String group, String artifact, String version, String target,
+            String targetUri) {
+        long backoff = 200;
+        IOException networkException = null;
+        for (int retryCount = 0; retryCount <= networkRetries; ++retryCount) {
+            HttpGet request = new HttpGet(targetUri + SHA_1);
+            fetch.current = request;
+            if (fetch.cancelled) {
+                return Optional.empty();
+            }
+            try (var hash = transport.executeChecksum(request)) {
+                if (hash.getStatusLine().getStatusCode() == 404) {
+                    hash.getEntity().getContent().readAllBytes(); //read the 404 page
+                    Log.debugf("Could not find sha1 hash for artifact %s/%s/%s/%s from repo %s at %s", group,
+                            artifact,
+                            version,
+                            target, name, uri);
                     return Optional.empty();
                 }
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    closeResponse(response);
-                    Log.errorf(
-                            "Unexpected status code: " + response.getStatusLine().getStatusCode() + " downloading %s from %s",
-                            target, targetUri);
-                    return Optional.empty();
+                String sha1 = new String(hash.getEntity().getContent().readAllBytes(), StandardCharsets.UTF_8).trim();
+                //older maven version would deploy sha files with extra stuff after the sha
+                if (sha1.contains(" ")) {
+                    sha1 = sha1.split(" ")[0];
                 }
-                Map<String, String> headers = new HashMap<>();
-                for (var i : response.getAllHeaders()) {
-                    headers.put(i.getName(), i.getValue());
+                return Optional.of(sha1);
+            } catch (UpstreamTransport.CircuitOpenException e) {
+                throw new UncheckedIOException(e);
+            } catch (IOException e) {
+                if (fetch.cancelled) {
+                    return Optional.empty();
                 }
-                Log.debugf("Found artifact %s/%s/%s/%s from repo %s at %s", group, artifact, version, target, name, uri);
-                return Optional
-                        .of(new ArtifactResult(null, new CloseDelegateInputStream(response.getEntity().getContent(), response),
-                                response.getEntity().getContentLength(),
-                                Optional.ofNullable(sha1), headers));
-            } catch (Exception e) {
-                try {
-                    if (response != null) {
-                        response.close();
+                networkException = e;
+                if (retryCount < networkRetries) {
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
                     }
-                } catch (IOException ex) {
-                    //ignore
+                    backoff += backoff;
                 }
-                throw new RuntimeException(e);
             }
         }
-        throw new RuntimeException(networkException);
+        throw new UncheckedIOException(networkException);
     }
 
     private void closeResponse(CloseableHttpResponse response) throws IOException {
@@ -157,7 +294,8 @@ public class MavenClient implements RepositoryClient {
     @Override
     public Optional<ArtifactResult> getMetadataFile(String group, String target) {
         Log.debugf("Retrieving metadata %s/%s from repo %s at %s", group, target, name, uri);
-        return downloadMavenFile(group, null, null, target, uri + "/" + group + "/" + target);
+        //metadata is not checked against a checksum, so there is no need to fetch one
+        return downloadMavenFile(group, null, null, target, uri + "/" + group + "/" + target, false);
 
     }
 
@@ -1,28 +1,25 @@
 package com.redhat.hacbs.artifactcache.services.client.ociregistry;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.tools.jib.api.Credential;
 import com.google.cloud.tools.jib.api.DescriptorDigest;
@@ -41,8 +38,11 @@ import com.redhat.hacbs.artifactcache.artifactwatch.RebuiltArtifacts;
 import com.redhat.hacbs.artifactcache.services.ArtifactResult;
 import com.redhat.hacbs.artifactcache.services.RepositoryClient;
 import com.redhat.hacbs.artifactcache.services.StorageManager;
+import com.redhat.hacbs.resources.util.BlobPipe;
+import com.redhat.hacbs.resources.util.HashUtil;
 import com.redhat.hacbs.resources.util.ShaUtil;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.logging.Log;
 
 public class OCIRegistryRepositoryClient implements RepositoryClient {
@@ -55,15 +55,33 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
     private final boolean enableHttpAndInsecureFailover;
     private final StorageManager storageManager;
     private final Credential credential;
+    private final TagDigestCache tagDigests;
+    private final Executor background;
+
+    /**
+     * The registry client is shared between requests, so the bearer token it holds is reused
+     */
+    private volatile RegistryClient registryClient;
 
     final RebuiltArtifacts rebuiltArtifacts;
 
     final Map<String, CountDownLatch> locks = new ConcurrentHashMap<>();
 
+    /**
+     * The indexes of recently used images, keyed by manifest digest, so the index file is not read on every request
+     */
+    final Map<String, TarIndex> tarIndexes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TarIndex> eldest) {
+            return size() > MAX_CACHED_INDEXES;
+        }
+    });
+
     public OCIRegistryRepositoryClient(String registry, String owner, String repository, Optional<String> authToken,
             Optional<String> prependHashedGav,
             boolean enableHttpAndInsecureFailover, RebuiltArtifacts rebuiltArtifacts,
-            StorageManager storageManager) {
+            StorageManager storageManager, Duration tagTtl, MeterRegistry meterRegistry, Executor background) {
+        this.background = background;
         this.prependHashedGav = prependHashedGav;
         this.registry = registry;
         this.owner = owner;
@@ -116,6 +134,19 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
             Log.infof("No credential provided");
         }
         this.storageManager = storageManager.resolve(HACBS);
+        //the hacbs directory is shared by all registries, so the tag file needs to be specific to this one
+        this.tagDigests = new TagDigestCache(Path.of(this.storageManager.path())
+                .resolve(TAGS + HashUtil.sha1(registry + "/" + owner + "/" + repository)), tagTtl, meterRegistry);
+        this.storageManager.addClearListener(() -> {
+            tarIndexes.clear();
+            tagDigests.reset();
+        });
+        rebuiltArtifacts.addArtifactAddedListener(gav -> {
+            String[] parts = gav.split(":");
+            if (parts.length == 3) {
+                tagDigests.invalidate(hashedGav(parts[0], parts[1], parts[2]));
+            }
+        });
         rebuiltArtifacts.addImageDeletionListener(new Consumer<String>() {
             @Override
             public void accept(String s) {
@@ -125,6 +156,8 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
                     DescriptorDigest descriptorDigest = manifestAndDigest.getDigest();
                     String digestHash = descriptorDigest.getHash();
                     Log.infof("Deleting cached image %s", digestHash);
+                    tagDigests.invalidateDigest(digestHash);
+                    tarIndexes.remove(digestHash);
                     storageManager.delete(digestHash);
                 } catch (Exception e) {
                     Log.errorf(e, "Failed to clear cache path for image %s", s);
@@ -145,18 +178,26 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
 
         group = group.replace("/", ".");
         String groupPath = group.replace(DOT, File.separator);
-        String hashedGav = ShaUtil.sha256sum(group, artifact, version);
-        if (prependHashedGav.isPresent()) {
-            hashedGav = prependHashedGav.get() + UNDERSCORE + hashedGav;
-        }
-        if (hashedGav.length() > 128) {
-            hashedGav = hashedGav.substring(0, 128);
-        }
+        String hashedGav = hashedGav(group, artifact, version);
 
         String gav = group + ":" + artifact + ":" + version;
         if (!rebuiltArtifacts.isPossiblyRebuilt(gav)) {
             return Optional.empty();
         }
+        String digest = tagDigests.get(hashedGav);
+        if (digest != null) {
+            //we know which image this is, if it is already extracted there is no need to ask the registry
+            try {
+                Path digestHashPath = storageManager.accessDirectory(digest);
+                if (existInLocalCache(digestHashPath)) {
+                    Log.debugf("Retrieving %s for artifact %s from image %s without contacting the registry", hashedGav,
+                            gav, digest);
+                    return findArtifact(digest, digestHashPath, group, groupPath, artifact, version, target);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         Log.debugf("Attempting to retrieve %s for artifact %s", hashedGav, gav);
         RegistryClient registryClient = getRegistryClient();
 
@@ -171,8 +212,8 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
                 registryClient.authPullByWwwAuthenticate(wwwAuthenticate);
                 return doDownload(group, artifact, version, target, time, groupPath, hashedGav, gav, registryClient);
             } catch (RegistryUnauthorizedException ex) {
-                Log.errorf("Failed to authenticate against registry %s/%s/%s", registry, owner, repository);
-                return Optional.empty();
+                throw new RuntimeException(
+                        "Failed to authenticate against registry " + registry + "/" + owner + "/" + repository, ex);
             } catch (RegistryException ex) {
                 throw new RuntimeException(ex);
             }
@@ -190,19 +231,10 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
             DescriptorDigest descriptorDigest = manifestAndDigest.getDigest();
 
             String digestHash = descriptorDigest.getHash();
-            Optional<Path> repoRoot = getLocalCachePath(registryClient, manifest, digestHash);
-            if (repoRoot.isPresent()) {
-                Path fileWeAreAfter = repoRoot.get().resolve(groupPath).resolve(artifact).resolve(version).resolve(target);
-
-                boolean exists = Files.exists(fileWeAreAfter);
-                if (exists) {
-                    return Optional.of(
-                            new ArtifactResult(null, Files.newInputStream(fileWeAreAfter), Files.size(fileWeAreAfter),
-                                    getSha1(fileWeAreAfter),
-                                    Map.of()));
-                } else {
-                    Log.warnf("Key %s:%s:%s not found", group, artifact, version);
-                }
+            tagDigests.put(hashedGav, digestHash);
+            Optional<Path> imagePath = getLocalCachePath(registryClient, manifest, digestHash);
+            if (imagePath.isPresent()) {
+                return findArtifact(digestHash, imagePath.get(), group, groupPath, artifact, version, target);
             }
         } catch (RegistryUnauthorizedException ioe) {
             throw ioe;
@@ -227,12 +259,68 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
         return Optional.empty();
     }
 
+    private Optional<ArtifactResult> findArtifact(String digestHash, Path imagePath, String group, String groupPath,
+            String artifact, String version, String target) throws IOException {
+        TarIndex index = tarIndexes.get(digestHash);
+        if (index == null && TarIndex.exists(imagePath)) {
+            index = TarIndex.load(imagePath);
+            tarIndexes.put(digestHash, index);
+        }
+        if (index != null) {
+            //serve the file straight out of the layer tar
+            String name = ARTIFACTS + "/" + group.replace(DOT, "/") + "/" + artifact + "/" + version + "/" + target;
+            Optional<TarIndex.Entry> entry = index.get(name);
+            if (entry.isPresent()) {
+                Optional<TarIndex.Entry> shaEntry = index.get(name + DOT + SHA_1);
+                Optional<String> sha1 = shaEntry.isPresent() ? Optional.of(index.readString(shaEntry.get()))
+                        : Optional.empty();
+                return Optional.of(new ArtifactResult(null, index.open(entry.get()), entry.get().size(), sha1, Map.of()));
+            }
+        } else {
+            //the image was extracted by an older version
+            Path fileWeAreAfter = imagePath.resolve(ARTIFACTS).resolve(groupPath).resolve(artifact).resolve(version)
+                    .resolve(target);
+            if (Files.exists(fileWeAreAfter)) {
+                return Optional.of(
+                        new ArtifactResult(null, Files.newInputStream(fileWeAreAfter), Files.size(fileWeAreAfter),
+                                getSha1(fileWeAreAfter),
+                                Map.of()));
+            }
+        }
+        Log.warnf("Key %s:%s:%s not found", group, artifact, version);
+        return Optional.empty();
+    }
+
+    private String hashedGav(String group, String artifact, String version) {
+        String hashedGav = ShaUtil.sha256sum(group, artifact, version);
+        if (prependHashedGav.isPresent()) {
+            hashedGav = prependHashedGav.get() + UNDERSCORE + hashedGav;
+        }
+        if (hashedGav.length() > 128) {
+            hashedGav = hashedGav.substring(0, 128);
+        }
+        return hashedGav;
+    }
+
     @Override
     public Optional<ArtifactResult> getMetadataFile(String group, String target) {
         return Optional.empty();
     }
 
     private RegistryClient getRegistryClient() {
+        RegistryClient client = registryClient;
+        if (client == null) {
+            synchronized (this) {
+                client = registryClient;
+                if (client == null) {
+                    client = registryClient = createRegistryClient();
+                }
+            }
+        }
+        return client;
+    }
+
+    private RegistryClient createRegistryClient() {
         RegistryClient.Factory factory = RegistryClient.factory(new EventHandlers.Builder().build(), registry,
                 owner + "/" + repository,
                 new FailoverHttpClient(enableHttpAndInsecureFailover, enableHttpAndInsecureFailover,
@@ -248,9 +336,8 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
     private Optional<Path> getLocalCachePath(RegistryClient registryClient, ManifestTemplate manifest, String digestHash)
             throws IOException {
         Path digestHashPath = storageManager.accessDirectory(digestHash);
-        Path artifactsPath = Paths.get(digestHashPath.toString(), ARTIFACTS);
         if (existInLocalCache(digestHashPath)) {
-            return Optional.of(artifactsPath);
+            return Optional.of(digestHashPath);
         } else {
             CountDownLatch latch = new CountDownLatch(1);
             var existing = locks.putIfAbsent(digestHash, latch);
@@ -268,9 +355,9 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
                     throw new RuntimeException(e);
                 }
                 if (existInLocalCache(digestHashPath)) {
-                    return Optional.of(artifactsPath);
+                    return Optional.of(digestHashPath);
                 }
-                return Optional.empty();
+                throw new IOException("Failed to pull image " + digestHash);
             }
         }
     }
@@ -292,13 +379,22 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
 
                 Path outputPath = Files.createDirectories(digestHashPath);
 
-                Path tarFile = Files.createFile(Paths.get(outputPath.toString(), digestHash + ".tar"));
-                try (OutputStream tarOutputStream = Files.newOutputStream(tarFile)) {
-                    blob.writeTo(tarOutputStream);
-                }
-                try (InputStream tarInput = Files.newInputStream(tarFile)) {
-                    extractTarArchive(tarInput, outputPath.toString());
-                    return Optional.of(Paths.get(outputPath.toString(), ARTIFACTS));
+                //the blob is decompressed as it is downloaded, and kept as an uncompressed tar
+                //files are served directly from the tar using the index, so it is never extracted
+                Path tarPart = outputPath.resolve(TarIndex.TAR + ".part");
+                try (BlobPipe blobInput = BlobPipe.open(background, blob::writeTo, artifactsLayer.getDigest().getHash());
+                        GZIPInputStream tarInput = new GZIPInputStream(blobInput)) {
+                    Files.copy(tarInput, tarPart, StandardCopyOption.REPLACE_EXISTING);
+                    //gzip stops at the end of its own data, so check the whole blob arrived and matched its digest
+                    blobInput.verify();
+                    Files.move(tarPart, outputPath.resolve(TarIndex.TAR), StandardCopyOption.REPLACE_EXISTING);
+                    TarIndex.create(outputPath);
+                    return Optional.of(outputPath);
+                } catch (IOException e) {
+                    //don't leave a partial tar behind
+                    tarIndexes.remove(digestHash);
+                    storageManager.delete(digestHash);
+                    throw e;
                 }
             } else {
                 Log.warnf("Unexpected layer size %d. We expect 3", layers.size());
@@ -314,7 +410,7 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
 
     private boolean existInLocalCache(Path digestHashPath) {
         return Files.exists(digestHashPath) && Files.isDirectory(digestHashPath)
-                && Files.exists(digestHashPath.resolve(ARTIFACTS));
+                && (TarIndex.exists(digestHashPath) || Files.exists(digestHashPath.resolve(ARTIFACTS)));
     }
 
     private Optional<String> getSha1(Path file) throws IOException {
@@ -326,36 +422,10 @@ public class OCIRegistryRepositoryClient implements RepositoryClient {
         return Optional.empty();
     }
 
-    private void extractTarArchive(InputStream tarInput, String folder) throws IOException {
-        try (GZIPInputStream inputStream = new GZIPInputStream(tarInput);
-                TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(inputStream)) {
-
-            for (TarArchiveEntry entry = tarArchiveInputStream.getNextTarEntry(); entry != null; entry = tarArchiveInputStream
-                    .getNextTarEntry()) {
-                extractEntry(entry, tarArchiveInputStream, folder);
-            }
-        }
-    }
-
-    private void extractEntry(ArchiveEntry entry, InputStream tar, String folder) throws IOException {
-        final int bufferSize = 4096;
-        final String path = folder + File.separator + entry.getName();
-        if (entry.isDirectory()) {
-            new File(path).mkdirs();
-        } else {
-            int count;
-            byte[] data = new byte[bufferSize];
-            try (FileOutputStream os = new FileOutputStream(path);
-                    BufferedOutputStream dest = new BufferedOutputStream(os, bufferSize)) {
-                while ((count = tar.read(data, 0, bufferSize)) != -1) {
-                    dest.write(data, 0, count);
-                }
-            }
-        }
-    }
-
+    private static final int MAX_CACHED_INDEXES = 100;
     private static final String UNDERSCORE = "_";
     private static final String HACBS = "hacbs";
+    private static final String TAGS = ".tags-";
     private static final String ARTIFACTS = "artifacts";
     private static final String DOT = ".";
     private static final String SHA_1 = "sha1";
@@ -0,0 +1,134 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.redhat.hacbs.artifactcache.util.AppendOnlyJournal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.logging.Log;
+
+/**
+ * Remembers which manifest digest an image tag resolved to, so artifacts from images that are already extracted locally
+ * can be served without asking the registry.
+ * <p>
+ * Entries expire after a fixed TTL, and are removed when the artifact is rebuilt or the image is deleted. They are
+ * persisted to an append only file in the same way as the not found cache, so they survive restarts.
+ */
+class TagDigestCache {
+
+    private final long ttl;
+    private final Counter hits;
+    private final Counter misses;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AppendOnlyJournal journal;
+
+    TagDigestCache(Path file, Duration ttl, MeterRegistry registry) {
+        this.ttl = ttl.toMillis();
+        this.journal = new AppendOnlyJournal(file, () -> {
+            long now = System.currentTimeMillis();
+            return entries.entrySet().stream().filter(e -> e.getValue().expiry() > now)
+                    .map(e -> record(e.getKey(), e.getValue()));
+        });
+        this.hits = registry.counter("oci_tag_cache_hits");
+        this.misses = registry.counter("oci_tag_cache_misses");
+        if (this.ttl > 0) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the digest the tag resolved to, or null if it is not known or has expired.
+     */
+    String get(String tag) {
+        if (ttl <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(tag);
+        if (entry != null) {
+            if (entry.expiry() > System.currentTimeMillis()) {
+                hits.increment();
+                return entry.digest();
+            }
+            entries.remove(tag, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String tag, String digest) {
+        if (ttl <= 0) {
+            return;
+        }
+        Entry entry = new Entry(digest, System.currentTimeMillis() + ttl);
+        if (!entry.digest().equals(digest(entries.put(tag, entry)))) {
+            append(tag, entry);
+        }
+    }
+
+    void invalidate(String tag) {
+        if (entries.remove(tag) != null) {
+            append(tag, new Entry("-", 0));
+        }
+    }
+
+    /**
+     * Removes all the tags that resolved to the given digest.
+     */
+    void invalidateDigest(String digest) {
+        for (var e : entries.entrySet()) {
+            if (e.getValue().digest().equals(digest) && entries.remove(e.getKey(), e.getValue())) {
+                append(e.getKey(), new Entry("-", 0));
+            }
+        }
+    }
+
+    private static String digest(Entry entry) {
+        return entry == null ? null : entry.digest();
+    }
+
+    /**
+     * Forgets all tags. This is called when the storage has been cleared, which deletes the file that is being appended
+     * to.
+     */
+    void reset() {
+        entries.clear();
+        journal.reset();
+    }
+
+    private void append(String tag, Entry entry) {
+        journal.append(record(tag, entry), entries.size());
+    }
+
+    private static String record(String tag, Entry entry) {
+        return entry.expiry() + " " + tag + " " + entry.digest();
+    }
+
+    private void load() {
+        long now = System.currentTimeMillis();
+        journal.load(line -> {
+            String[] parts = line.split(" ");
+            if (parts.length != 3) {
+                return;
+            }
+            try {
+                //later lines replace earlier ones, and invalidated entries have an expiry of 0
+                Entry entry = new Entry(parts[2], Long.parseLong(parts[0]));
+                if (entry.expiry() > now) {
+                    entries.put(parts[1], entry);
+                } else {
+                    entries.remove(parts[1]);
+                }
+            } catch (NumberFormatException e) {
+                Log.debugf("Ignoring invalid line in tag cache: %s", line);
+            }
+        });
+    }
+
+    private record Entry(String digest, long expiry) {
+    }
+}
@@ -0,0 +1,144 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarFile;
+
+/**
+ * An index of the files in an uncompressed layer tar, so single files can be served from it without extracting the
+ * whole layer.
+ * <p>
+ * The index is a text file with the data offset, size and name of every file in the tar. It is written after the tar is
+ * complete, so if it exists the tar is complete.
+ */
+class TarIndex {
+
+    static final String TAR = "layer.tar";
+    static final String INDEX = "layer.index";
+
+    private final Path tar;
+    private final Map<String, Entry> entries;
+
+    private TarIndex(Path tar, Map<String, Entry> entries) {
+        this.tar = tar;
+        this.entries = entries;
+    }
+
+    static boolean exists(Path directory) {
+        return Files.exists(directory.resolve(INDEX));
+    }
+
+    /**
+     * Creates the index for the tar in the given directory.
+     */
+    static void create(Path directory) throws IOException {
+        Path index = directory.resolve(INDEX);
+        Path temp = directory.resolve(INDEX + ".part");
+        try (TarFile tarFile = new TarFile(directory.resolve(TAR));
+                BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (TarArchiveEntry entry : tarFile.getEntries()) {
+                if (entry.isFile()) {
+                    out.write(entry.getDataOffset() + " " + entry.getSize() + " " + normalize(entry.getName()) + "\n");
+                }
+            }
+        }
+        Files.move(temp, index, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static TarIndex load(Path directory) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(directory.resolve(INDEX), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int first = line.indexOf(' ');
+                int second = line.indexOf(' ', first + 1);
+                entries.put(line.substring(second + 1),
+                        new Entry(Long.parseLong(line.substring(0, first)), Long.parseLong(line.substring(first + 1, second))));
+            }
+        }
+        return new TarIndex(directory.resolve(TAR), entries);
+    }
+
+    Optional<Entry> get(String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    /**
+     * Opens a stream of the contents of the entry, read directly from the tar.
+     */
+    InputStream open(Entry entry) throws IOException {
+        return new RangeInputStream(FileChannel.open(tar, StandardOpenOption.READ), entry.offset(), entry.size());
+    }
+
+    String readString(Entry entry) throws IOException {
+        try (InputStream in = open(entry)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String normalize(String name) {
+        while (name.startsWith("./") || name.startsWith("/")) {
+            name = name.substring(name.indexOf('/') + 1);
+        }
+        return name;
+    }
+
+    record Entry(long offset, long size) {
+    }
+
+    private static final class RangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        private RangeInputStream(FileChannel channel, long offset, long size) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            int r = read(data, 0, 1);
+            return r == -1 ? -1 : data[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (r > 0) {
+                position += r;
+            }
+            return r;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.redhat.hacbs.artifactcache.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import io.quarkus.logging.Log;
+
+/**
+ * An append only file that persists a small in memory map, so it survives restarts.
+ * <p>
+ * Every change is appended as a single line record, and later records replace earlier ones when the file is loaded. The
+ * file is rewritten with only the current records when it is loaded, and when it has grown to more than twice the
+ * number of current records.
+ * <p>
+ * Errors are logged rather than thrown, as the map still works without its file.
+ */
+public final class AppendOnlyJournal {
+
+    private static final int MIN_COMPACT_SIZE = 1000;
+
+    private final Path file;
+    private final Supplier<Stream<String>> records;
+    private Writer journal;
+    private int journalSize;
+
+    /**
+     * @param file The file to write to
+     * @param records The current records, used to rewrite the file when it is compacted
+     */
+    public AppendOnlyJournal(Path file, Supplier<Stream<String>> records) {
+        this.file = file;
+        this.records = records;
+    }
+
+    /**
+     * Passes every record in the file to the reader, in the order they were written, and then compacts the file.
+     */
+    public synchronized void load(Consumer<String> reader) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                reader.accept(line);
+            }
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to read %s", file);
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to compact %s", file);
+        }
+    }
+
+    /**
+     * Appends a record to the file.
+     *
+     * @param record The record, which must not contain a new line
+     * @param liveRecords The number of records the map currently holds, used to decide when to compact
+     */
+    public synchronized void append(String record, int liveRecords) {
+        try {
+            if (journalSize > Math.max(MIN_COMPACT_SIZE, liveRecords * 2)) {
+                compact();
+            }
+            if (journal == null) {
+                Files.createDirectories(file.getParent());
+                journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            }
+            journal.write(record + "\n");
+            journal.flush();
+            journalSize++;
+        } catch (IOException e) {
+            Log.errorf(e, "Failed to write to %s", file);
+        }
+    }
+
+    /**
+     * Closes the file without writing anything. This is called when the storage it is in has been cleared, which
+     * deletes the file, so it is recreated on the next write.
+     */
+    public synchronized void reset() {
+        journalSize = 0;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Log.debugf(e, "Failed to close %s", file);
+            }
+            journal = null;
+        }
+    }
+
+    private void compact() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        int size = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+                Stream<String> current = records.get()) {
+            for (var i = current.iterator(); i.hasNext();) {
+                out.write(i.next() + "\n");
+                size++;
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        journalSize = size;
+    }
+}
@@ -0,0 +1,77 @@
+package com.redhat.hacbs.artifactcache.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A circuit breaker for a single upstream host.
+ * <p>
+ * After a number of consecutive failures the circuit opens, and requests are rejected without going to the host. Once
+ * the open time has passed a single trial request is let through, if it succeeds the circuit closes, otherwise it opens
+ * again.
+ */
+final class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean trial = new AtomicBoolean();
+    private volatile long openUntil;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Returns true if a request may be sent. If this returns true then either {@link #success()} or {@link #failure(long)}
+     * must be called once the request is complete.
+     */
+    boolean allow(long now) {
+        long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (now < until) {
+            return false;
+        }
+        return trial.compareAndSet(false, true);
+    }
+
+    /**
+     * @return true if this closed the circuit
+     */
+    boolean success() {
+        failures.set(0);
+        boolean closed = openUntil != 0;
+        openUntil = 0;
+        trial.set(false);
+        return closed;
+    }
+
+    /**
+     * @return true if this opened the circuit
+     */
+    boolean failure(long now) {
+        boolean opened = false;
+        if (failureThreshold > 0 && failures.incrementAndGet() >= failureThreshold) {
+            opened = openUntil == 0;
+            openUntil = now + openMillis;
+        }
+        trial.set(false);
+        return opened;
+    }
+
+    /**
+     * Called instead of {@link #success()} or {@link #failure(long)} when the request was aborted by us, so says nothing
+     * about the health of the host. If it was the trial request then another one is let through.
+     */
+    void aborted() {
+        trial.set(false);
+    }
+
+    boolean isOpen() {
+        return openUntil != 0;
+    }
+}
@@ -0,0 +1,109 @@
+package com.redhat.hacbs.artifactcache.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.ManagedContext;
+import io.smallrye.mutiny.Uni;
+
+/**
+ * Runs requests that may need to go to an upstream repository.
+ * <p>
+ * These can block for a long time if an upstream is slow. They run on their own pool, so they cannot starve the main
+ * worker pool. Requests that can be served locally, and the health checks, keep working while upstreams are slow. The
+ * pool is sized independently of the worker pool, and the HTTP client connection pools are sized to match it.
+ * <p>
+ * Work that runs alongside an upstream request, such as copying a streamed download to disk or fetching a checksum,
+ * uses a separate bounded background pool.
+ */
+@Singleton
+public class UpstreamExecutor {
+
+    public static final String UPSTREAM_THREADS = "cache-upstream-threads";
+    public static final int DEFAULT_UPSTREAM_THREADS = 100;
+    public static final String UPSTREAM_BACKGROUND_THREADS = "cache-upstream-background-threads";
+
+    final ExecutorService executor;
+    final ExecutorService background;
+
+    public UpstreamExecutor(
+            @ConfigProperty(name = UPSTREAM_THREADS, defaultValue = "" + DEFAULT_UPSTREAM_THREADS) int threads,
+            @ConfigProperty(name = UPSTREAM_BACKGROUND_THREADS, defaultValue = ""
+                    + DEFAULT_UPSTREAM_THREADS) int backgroundThreads,
+            MeterRegistry registry) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "upstream-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = ExecutorServiceMetrics.monitor(registry, pool, "upstream");
+
+        AtomicInteger backgroundCount = new AtomicInteger();
+        //tasks are handed straight to a thread, if they are all busy the task runs on the caller instead of queueing
+        //background tasks are often waited on by the caller, so a queue could deadlock once the pool is full
+        ThreadPoolExecutor backgroundPool = new ThreadPoolExecutor(0, backgroundThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "upstream-background-" + backgroundCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        background = ExecutorServiceMetrics.monitor(registry, backgroundPool, "upstream-background");
+    }
+
+    public static UpstreamExecutor instance() {
+        return Arc.container().instance(UpstreamExecutor.class).get();
+    }
+
+    /**
+     * The pool for work that runs alongside upstream requests. If all its threads are busy then tasks run on the
+     * submitting thread.
+     */
+    public Executor background() {
+        return background;
+    }
+
+    /**
+     * Runs the task on the upstream pool, with a request context active for the duration of the task.
+     * <p>
+     * The request context is terminated once the task is complete, which will close any upstream responses, so the
+     * returned value must not depend on them.
+     */
+    public <T> Uni<T> submit(Callable<T> task) {
+        return Uni.createFrom().item(() -> {
+            ManagedContext requestContext = Arc.container().requestContext();
+            requestContext.activate();
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                requestContext.terminate();
+            }
+        }).runSubscriptionOn(executor);
+    }
+
+    @PreDestroy
+    void destroy() {
+        executor.shutdown();
+        background.shutdown();
+    }
+}
@@ -0,0 +1,181 @@
+package com.redhat.hacbs.artifactcache.util;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.arc.Arc;
+import io.quarkus.arc.Unremovable;
+import io.quarkus.logging.Log;
+
+/**
+ * The HTTP transport used for all requests to upstream Maven repositories.
+ * <p>
+ * All the repositories share the same connection pools, so there is a global limit on the number of upstream
+ * connections, as well as a per host limit. Requests that are over the limit queue for a connection. Checksums have
+ * their own pool, as they are fetched while the file they are for is downloading, and if they shared a pool all the
+ * connections could be taken by downloads waiting on their checksums.
+ * <p>
+ * Every host has a circuit breaker. Connection failures, server errors and responses that are slower than the slow
+ * request threshold count as failures, and after enough consecutive failures requests to that host fail fast until it
+ * has had time to recover. The time taken to get a response from each host is recorded as a histogram.
+ */
+@Singleton
+@Unremovable
+public class UpstreamTransport {
+
+    public static final String MAX_CONNECTIONS = "cache-upstream-max-connections";
+    public static final String MAX_CONNECTIONS_PER_HOST = "cache-upstream-max-connections-per-host";
+    public static final String QUEUE_TIMEOUT = "cache-upstream-queue-timeout";
+    public static final String KEEP_ALIVE = "cache-upstream-keep-alive";
+    public static final String CIRCUIT_FAILURES = "cache-upstream-circuit-failures";
+    public static final String CIRCUIT_OPEN_TIME = "cache-upstream-circuit-open-time";
+    public static final String SLOW_REQUEST = "cache-upstream-slow-request";
+
+    final CloseableHttpClient client;
+    final CloseableHttpClient checksumClient;
+
+    private final MeterRegistry registry;
+    private final int circuitFailures;
+    private final long circuitOpenMillis;
+    private final long slowRequestNanos;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    public UpstreamTransport(
+            @ConfigProperty(name = UpstreamExecutor.UPSTREAM_THREADS, defaultValue = ""
+                    + UpstreamExecutor.DEFAULT_UPSTREAM_THREADS) int threads,
+            @ConfigProperty(name = MAX_CONNECTIONS) Optional<Integer> maxConnections,
+            @ConfigProperty(name = MAX_CONNECTIONS_PER_HOST) Optional<Integer> maxConnectionsPerHost,
+            @ConfigProperty(name = QUEUE_TIMEOUT, defaultValue = "60s") Duration queueTimeout,
+            @ConfigProperty(name = KEEP_ALIVE, defaultValue = "30s") Duration keepAlive,
+            @ConfigProperty(name = CIRCUIT_FAILURES, defaultValue = "5") int circuitFailures,
+            @ConfigProperty(name = CIRCUIT_OPEN_TIME, defaultValue = "30s") Duration circuitOpenTime,
+            @ConfigProperty(name = SLOW_REQUEST, defaultValue = "30s") Duration slowRequest,
+            MeterRegistry registry) {
+        this.registry = registry;
+        this.circuitFailures = circuitFailures;
+        this.circuitOpenMillis = circuitOpenTime.toMillis();
+        this.slowRequestNanos = slowRequest.toNanos();
+        //each upstream thread only uses one connection at a time, so this must be at least the number of upstream threads
+        //to prevent them waiting on the pool
+        int connections = maxConnections.orElse(threads);
+        int perHost = Math.min(connections, maxConnectionsPerHost.orElse(connections));
+        client = createClient(connections, perHost, queueTimeout, keepAlive);
+        checksumClient = createClient(connections, perHost, queueTimeout, keepAlive);
+    }
+
+    public static UpstreamTransport instance() {
+        return Arc.container().instance(UpstreamTransport.class).get();
+    }
+
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return execute(client, request);
+    }
+
+    /**
+     * Executes a checksum request, using the checksum connection pool.
+     */
+    public CloseableHttpResponse executeChecksum(HttpUriRequest request) throws IOException {
+        return execute(checksumClient, request);
+    }
+
+    private CloseableHttpResponse execute(CloseableHttpClient client, HttpUriRequest request) throws IOException {
+        String authority = request.getURI().getAuthority();
+        Host host = hosts.computeIfAbsent(authority, this::createHost);
+        if (!host.breaker().allow(System.currentTimeMillis())) {
+            host.rejected().increment();
+            throw new CircuitOpenException(authority);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            CloseableHttpResponse response = client.execute(request);
+            long time = System.nanoTime() - start;
+            host.timer().record(time, TimeUnit.NANOSECONDS);
+            failed = response.getStatusLine().getStatusCode() >= 500 || time > slowRequestNanos;
+            return response;
+        } finally {
+            if (request.isAborted()) {
+                //we cancelled it, e.g. a checksum that was not needed, so this is not a problem with the host
+                host.breaker().aborted();
+            } else if (failed) {
+                if (host.breaker().failure(System.currentTimeMillis())) {
+                    Log.errorf("Too many failed requests to %s, no requests will be sent to it for %sms", authority,
+                            circuitOpenMillis);
+                }
+            } else if (host.breaker().success()) {
+                Log.infof("Requests to %s are succeeding again", authority);
+            }
+        }
+    }
+
+    private Host createHost(String authority) {
+        return new Host(new CircuitBreaker(circuitFailures, circuitOpenMillis),
+                Timer.builder("upstream_request_time").tag("host", authority).publishPercentileHistogram()
+                        .register(registry),
+                Counter.builder("upstream_circuit_rejections").tag("host", authority).register(registry));
+    }
+
+    private static CloseableHttpClient createClient(int connections, int perHost, Duration queueTimeout,
+            Duration keepAlive) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(connections);
+        connectionManager.setDefaultMaxPerRoute(perHost);
+        long maxKeepAlive = keepAlive.toMillis();
+        return HttpClientBuilder.create().disableAutomaticRetries()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(
+                        RequestConfig.custom().setConnectionRequestTimeout((int) queueTimeout.toMillis()).build())
+                //never keep a connection for longer than the server allows, or longer than our own limit
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+                            context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, maxKeepAlive) : maxKeepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(maxKeepAlive, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @PreDestroy
+    void destroy() {
+        for (var i : new CloseableHttpClient[] { client, checksumClient }) {
+            try {
+                i.close();
+            } catch (IOException e) {
+                Log.debugf(e, "Failed to close HTTP client");
+            }
+        }
+    }
+
+    private record Host(CircuitBreaker breaker, Timer timer, Counter rejected) {
+    }
+
+    /**
+     * Thrown when a request is not sent because the circuit breaker for the host is open. There is no point retrying
+     * this.
+     */
+    public static class CircuitOpenException extends IOException {
+        public CircuitOpenException(String host) {
+            super("Too many failed requests to " + host + ", it is not being used until it recovers");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.redhat.hacbs.artifactcache.artifactwatch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class GavIndexTestCase {
+
+    @Test
+    public void testAddAndRemove() {
+        GavIndex index = new GavIndex();
+        Assertions.assertTrue(index.add("com.acme:foo:1.0"));
+        Assertions.assertTrue(index.add("com.acme:foo:1.1"));
+        Assertions.assertTrue(index.add("com.acme:bar:1.0"));
+        Assertions.assertFalse(index.add("com.acme:foo:1.0"));
+        Assertions.assertEquals(3, index.size());
+
+        Assertions.assertTrue(index.contains("com.acme:foo:1.0"));
+        Assertions.assertTrue(index.contains("com.acme:foo:1.1"));
+        Assertions.assertTrue(index.contains("com.acme:bar:1.0"));
+        Assertions.assertFalse(index.contains("com.acme:foo:1"));
+        Assertions.assertFalse(index.contains("com.acme:foo:1.0.1"));
+        Assertions.assertFalse(index.contains("com.acme:bar:1.1"));
+        Assertions.assertFalse(index.contains("org.acme:foo:1.0"));
+
+        Assertions.assertTrue(index.remove("com.acme:foo:1.0"));
+        Assertions.assertFalse(index.remove("com.acme:foo:1.0"));
+        Assertions.assertFalse(index.contains("com.acme:foo:1.0"));
+        Assertions.assertTrue(index.contains("com.acme:foo:1.1"));
+        Assertions.assertTrue(index.remove("com.acme:foo:1.1"));
+        Assertions.assertTrue(index.remove("com.acme:bar:1.0"));
+        Assertions.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testInvalidGav() {
+        GavIndex index = new GavIndex();
+        Assertions.assertTrue(index.add("foo"));
+        Assertions.assertTrue(index.add("foo:bar"));
+        Assertions.assertTrue(index.contains("foo"));
+        Assertions.assertTrue(index.contains("foo:bar"));
+        Assertions.assertFalse(index.contains("bar"));
+        Assertions.assertFalse(index.contains(":foo:bar"));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Path file = Files.createTempDirectory("test").resolve("snapshot");
+        GavIndex index = new GavIndex();
+        index.add("com.acme:foo:1.0");
+        index.add("com.acme:foo:1.1");
+        index.add("org.acme:bar:2.0");
+        index.add("foo:bar");
+        index.save(file);
+
+        GavIndex loaded = GavIndex.load(file);
+        Assertions.assertEquals(4, loaded.size());
+        Assertions.assertTrue(loaded.contains("com.acme:foo:1.0"));
+        Assertions.assertTrue(loaded.contains("com.acme:foo:1.1"));
+        Assertions.assertTrue(loaded.contains("org.acme:bar:2.0"));
+        Assertions.assertTrue(loaded.contains("foo:bar"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.redhat.hacbs.artifactcache.resources;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MetadataMergerTestCase {
+
+    static final long NF = MetadataMerger.NOT_FOUND;
+
+    @Test
+    public void testNewestIncluded() {
+        //newest first
+        long[] timestamps = { 500, 400, 300, 200, 100 };
+        Assertions.assertEquals(0, MetadataMerger.newestIncluded(5, 0, i -> timestamps[i]));
+        Assertions.assertEquals(0, MetadataMerger.newestIncluded(5, 1000, i -> timestamps[i]));
+        Assertions.assertEquals(2, MetadataMerger.newestIncluded(5, 300, i -> timestamps[i]));
+        Assertions.assertEquals(2, MetadataMerger.newestIncluded(5, 350, i -> timestamps[i]));
+        Assertions.assertEquals(4, MetadataMerger.newestIncluded(5, 100, i -> timestamps[i]));
+        Assertions.assertEquals(5, MetadataMerger.newestIncluded(5, 50, i -> timestamps[i]));
+    }
+
+    @Test
+    public void testNotFoundVersionsAreSkipped() {
+        long[] gap = { 500, 400, NF, 300, 200 };
+        Assertions.assertEquals(3, MetadataMerger.newestIncluded(5, 300, i -> gap[i]));
+        long[] largeGap = { 500, NF, NF, NF, 200 };
+        Assertions.assertEquals(4, MetadataMerger.newestIncluded(5, 450, i -> largeGap[i]));
+        long[] noneFound = { 500, NF, NF };
+        Assertions.assertEquals(3, MetadataMerger.newestIncluded(3, 300, i -> noneFound[i]));
+        //versions without a last modified time are always included
+        long[] unknown = { 500, MetadataMerger.UNKNOWN, 100 };
+        Assertions.assertEquals(1, MetadataMerger.newestIncluded(3, 300, i -> unknown[i]));
+    }
+
+    @Test
+    public void testMaintenanceReleasePublishedLater() {
+        //2.1, 2.0, 1.9.1, 1.9 where 1.9.1 was released after the commit, and after 2.0
+        long[] timestamps = { 400, 300, 600, 200 };
+        AtomicInteger lookups = new AtomicInteger();
+        int newest = MetadataMerger.newestIncluded(4, 350, i -> {
+            lookups.incrementAndGet();
+            return timestamps[i];
+        });
+        Assertions.assertEquals(1, newest);
+        //once a version is included everything older is as well, so there is no need to look them up
+        Assertions.assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testMergeVersions() throws Exception {
+        MetadataMerger.Merged merged = new MetadataMerger.Merged("digest", new byte[][] {
+                metadata("1.0", "1.1", "2.0-SNAPSHOT"),
+                metadata("1.1", "1.10", "1.2")
+        });
+        Assertions.assertArrayEquals(new String[] { "1.10", "1.2", "1.1", "1.0" }, merged.versions);
+
+        long[] timestamps = { 400, 300, 200, 100 };
+        String filtered = new String(merged.write(new Date(250), i -> timestamps[i]), StandardCharsets.UTF_8);
+        Assertions.assertTrue(filtered.contains("<release>1.1</release>"), filtered);
+        Assertions.assertTrue(filtered.contains("<version>1.0</version>"), filtered);
+        Assertions.assertFalse(filtered.contains("<version>1.2</version>"), filtered);
+        Assertions.assertFalse(filtered.contains("<version>1.10</version>"), filtered);
+
+        String all = new String(merged.write(new Date(0), i -> {
+            throw new IllegalStateException("No lookups are needed without a commit time");
+        }), StandardCharsets.UTF_8);
+        Assertions.assertTrue(all.contains("<release>1.10</release>"), all);
+        Assertions.assertTrue(all.contains("<version>1.2</version>"), all);
+        Assertions.assertFalse(all.contains("SNAPSHOT"), all);
+    }
+
+    private static byte[] metadata(String... versions) {
+        StringBuilder sb = new StringBuilder(
+                "<metadata><groupId>org.acme</groupId><artifactId>foo</artifactId><versioning><versions>");
+        for (var i : versions) {
+            sb.append("<version>").append(i).append("</version>");
+        }
+        sb.append("</versions></versioning></metadata>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
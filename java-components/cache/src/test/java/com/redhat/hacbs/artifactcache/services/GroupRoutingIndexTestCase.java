@@ -0,0 +1,87 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class GroupRoutingIndexTestCase {
+
+    @Test
+    public void testPrefix() {
+        Assertions.assertEquals("org", GroupRoutingIndex.prefix("org"));
+        Assertions.assertEquals("org/acme", GroupRoutingIndex.prefix("org/acme"));
+        Assertions.assertEquals("org/acme", GroupRoutingIndex.prefix("org/acme/foo/bar"));
+    }
+
+    @Test
+    public void testSkipAndReprobe() throws IOException {
+        Path file = Files.createTempDirectory("test").resolve(GroupRoutingIndex.FILE);
+        GroupRoutingIndex index = new GroupRoutingIndex(file, Duration.ofMillis(1000), new SimpleMeterRegistry());
+        index.hit("org/acme/foo");
+        for (int i = 0; i < GroupRoutingIndex.MISS_THRESHOLD; ++i) {
+            Assertions.assertTrue(index.mayContain("com/other/foo", 0, true));
+            index.miss("com/other/foo", 0);
+            //groups that have been served are never skipped
+            index.miss("org/acme/bar", 0);
+        }
+        Assertions.assertFalse(index.mayContain("com/other/bar", 500, true));
+        Assertions.assertTrue(index.mayContain("org/acme/bar", 500, true));
+
+        //a lookup that can't go upstream does not use up the re-probe
+        Assertions.assertTrue(index.mayContain("com/other/foo", 1000, false));
+        Assertions.assertTrue(index.mayContain("com/other/foo", 1000, true));
+        Assertions.assertFalse(index.mayContain("com/other/foo", 1000, true));
+        index.miss("com/other/foo", 1000);
+        Assertions.assertFalse(index.mayContain("com/other/foo", 1500, true));
+
+        //once the prefix is served it is no longer skipped
+        Assertions.assertTrue(index.mayContain("com/other/foo", 2000, true));
+        index.hit("com/other/foo");
+        Assertions.assertTrue(index.mayContain("com/other/foo", 2000, true));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        Path file = Files.createTempDirectory("test").resolve(GroupRoutingIndex.FILE);
+        GroupRoutingIndex index = new GroupRoutingIndex(file, Duration.ofHours(1), new SimpleMeterRegistry());
+        for (int i = 0; i < GroupRoutingIndex.MISS_THRESHOLD; ++i) {
+            index.miss("com/other/foo", 0);
+            index.miss("org/acme/foo", 0);
+        }
+        index.hit("org/acme/foo");
+
+        GroupRoutingIndex loaded = new GroupRoutingIndex(file, Duration.ofHours(1), new SimpleMeterRegistry());
+        long now = System.currentTimeMillis();
+        Assertions.assertFalse(loaded.mayContain("com/other/foo", now, true));
+        Assertions.assertTrue(loaded.mayContain("org/acme/foo", now, true));
+        Assertions.assertTrue(loaded.mayContain("net/new", now, true));
+    }
+
+    @Test
+    public void testResetAfterClear() throws IOException {
+        Path file = Files.createTempDirectory("test").resolve(GroupRoutingIndex.FILE);
+        GroupRoutingIndex index = new GroupRoutingIndex(file, Duration.ofHours(1), new SimpleMeterRegistry());
+        for (int i = 0; i < GroupRoutingIndex.MISS_THRESHOLD; ++i) {
+            index.miss("com/other/foo", 0);
+        }
+        Assertions.assertFalse(index.mayContain("com/other/foo", 0, true));
+
+        //clearing the storage deletes the file, and everything that was learnt
+        Files.delete(file);
+        index.reset();
+        Assertions.assertTrue(index.mayContain("com/other/foo", 0, true));
+        index.hit("org/acme/foo");
+        Assertions.assertTrue(Files.exists(file));
+
+        GroupRoutingIndex loaded = new GroupRoutingIndex(file, Duration.ofHours(1), new SimpleMeterRegistry());
+        long now = System.currentTimeMillis();
+        Assertions.assertTrue(loaded.mayContain("com/other/foo", now, true));
+        Assertions.assertTrue(loaded.mayContain("org/acme/foo", now, true));
+    }
+}
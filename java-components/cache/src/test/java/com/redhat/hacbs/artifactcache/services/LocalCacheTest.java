@@ -19,9 +19,12 @@ import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import jakarta.inject.Inject;
+
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import com.redhat.hacbs.artifactcache.util.UpstreamExecutor;
 import com.redhat.hacbs.resources.util.HashUtil;
 
 import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
@@ -32,6 +35,9 @@ public class LocalCacheTest {
 
     ArtifactResult current;
 
+    @Inject
+    UpstreamExecutor upstreamExecutor;
+
     public final RepositoryClient MOCK_CLIENT = new RepositoryClient() {
         @Override
         public String getName() {
@@ -126,11 +132,14 @@ public class LocalCacheTest {
     void runTest(BiConsumer<CacheFacade, Path> consumer) throws Exception {
         Path temp = Files.createTempDirectory("cache-test");
         try {
-            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, new CompositeMeterRegistry());
+            CompositeMeterRegistry registry = new CompositeMeterRegistry();
+            RootStorageManager storageManager = new RootStorageManager(temp, 1, 1, 1, EvictionPolicy.LRU, registry);
             CacheFacade localCache = new CacheFacade(
                     Map.of("default", new BuildPolicy(
                             List.of(new RepositoryCache(storageManager,
-                                    new Repository("test", "http://test.com", RepositoryType.MAVEN2, MOCK_CLIENT), true)))));
+                                    new Repository("test", "http://test.com", RepositoryType.MAVEN2, MOCK_CLIENT), true,
+                                    registry, upstreamExecutor.background())))),
+                    upstreamExecutor, registry);
 
             consumer.accept(localCache, temp);
 
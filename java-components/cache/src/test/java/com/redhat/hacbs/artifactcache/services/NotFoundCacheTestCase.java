@@ -0,0 +1,60 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class NotFoundCacheTestCase {
+
+    @Test
+    public void testPersistenceAndInvalidation() throws IOException {
+        Path file = Files.createTempDirectory("test").resolve(NotFoundCache.FILE);
+        NotFoundCache cache = new NotFoundCache(file, Duration.ofMinutes(10), new SimpleMeterRegistry());
+        cache.notFound("org/foo/bar/1.0/bar-1.0-sources.jar");
+        cache.notFound("org/foo/bar/maven-metadata.xml");
+        cache.notFound("org/foo/baz/1.0/baz-1.0.pom");
+        Assertions.assertTrue(cache.isNotFound("org/foo/bar/1.0/bar-1.0-sources.jar"));
+        Assertions.assertFalse(cache.isNotFound("org/foo/bar/1.0/bar-1.0.jar"));
+
+        cache.invalidate("org/foo/bar/");
+        Assertions.assertFalse(cache.isNotFound("org/foo/bar/1.0/bar-1.0-sources.jar"));
+        Assertions.assertFalse(cache.isNotFound("org/foo/bar/maven-metadata.xml"));
+
+        NotFoundCache loaded = new NotFoundCache(file, Duration.ofMinutes(10), new SimpleMeterRegistry());
+        Assertions.assertTrue(loaded.isNotFound("org/foo/baz/1.0/baz-1.0.pom"));
+        Assertions.assertFalse(loaded.isNotFound("org/foo/bar/1.0/bar-1.0-sources.jar"));
+    }
+
+    @Test
+    public void testExpiry() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("test").resolve(NotFoundCache.FILE);
+        NotFoundCache cache = new NotFoundCache(file, Duration.ofMillis(5), new SimpleMeterRegistry());
+        cache.notFound("org/foo/bar/1.0/bar-1.0.pom");
+        Thread.sleep(10);
+        Assertions.assertFalse(cache.isNotFound("org/foo/bar/1.0/bar-1.0.pom"));
+        Assertions.assertFalse(new NotFoundCache(file, Duration.ofMillis(5), new SimpleMeterRegistry())
+                .isNotFound("org/foo/bar/1.0/bar-1.0.pom"));
+    }
+
+    @Test
+    public void testResetAfterClear() throws IOException {
+        Path file = Files.createTempDirectory("test").resolve(NotFoundCache.FILE);
+        NotFoundCache cache = new NotFoundCache(file, Duration.ofMinutes(10), new SimpleMeterRegistry());
+        cache.notFound("org/foo/bar/1.0/bar-1.0.pom");
+        //the storage being cleared deletes the file while it is open
+        Files.delete(file);
+        cache.reset();
+        Assertions.assertFalse(cache.isNotFound("org/foo/bar/1.0/bar-1.0.pom"));
+
+        cache.notFound("org/foo/baz/1.0/baz-1.0.pom");
+        NotFoundCache loaded = new NotFoundCache(file, Duration.ofMinutes(10), new SimpleMeterRegistry());
+        Assertions.assertTrue(loaded.isNotFound("org/foo/baz/1.0/baz-1.0.pom"));
+        Assertions.assertFalse(loaded.isNotFound("org/foo/bar/1.0/bar-1.0.pom"));
+    }
+}
@@ -0,0 +1,43 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RepositoryRoutingTestCase {
+
+    @Test
+    public void testGroupPrefixes() {
+        Repository any = new Repository("any", "http://localhost", RepositoryType.MAVEN2, null);
+        Assertions.assertTrue(any.mayContainGroup("org/acme"));
+
+        Repository repo = new Repository("acme", "http://localhost", RepositoryType.MAVEN2, null,
+                List.of("org.acme", " com/acme/foo "));
+        Assertions.assertTrue(repo.mayContainGroup("org/acme"));
+        Assertions.assertTrue(repo.mayContainGroup("org/acme/bar"));
+        Assertions.assertTrue(repo.mayContainGroup("com/acme/foo/bar"));
+        Assertions.assertFalse(repo.mayContainGroup("org/acmecorp"));
+        Assertions.assertFalse(repo.mayContainGroup("com/acme"));
+        Assertions.assertFalse(repo.mayContainGroup("org/apache"));
+    }
+
+    @Test
+    public void testHedgeDelay() {
+        RepositoryStats stats = new RepositoryStats("test", new SimpleMeterRegistry());
+        Assertions.assertEquals(RepositoryStats.DEFAULT_DELAY, stats.getHedgeDelay());
+        for (int i = 0; i < 50; ++i) {
+            stats.record(TimeUnit.MILLISECONDS.toNanos(100), true);
+        }
+        long delay = stats.getHedgeDelay();
+        Assertions.assertTrue(delay >= TimeUnit.MILLISECONDS.toNanos(100), "" + delay);
+        Assertions.assertTrue(delay < TimeUnit.MILLISECONDS.toNanos(200), "" + delay);
+
+        //a slow lookup increases the delay, so variable repositories are not hedged as quickly
+        stats.record(TimeUnit.SECONDS.toNanos(2), false);
+        Assertions.assertTrue(stats.getHedgeDelay() > delay);
+    }
+}
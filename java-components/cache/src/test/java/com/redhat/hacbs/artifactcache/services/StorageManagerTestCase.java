@@ -6,9 +6,14 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.jupiter.api.Assertions;
@@ -71,6 +76,220 @@ public class StorageManagerTestCase {
 
     }
 
+    @Test
+    public void testSizeAwareEviction() throws IOException, InterruptedException {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1,
+                new GdsfEvictionPolicy());
+        List<Path> small = new ArrayList<>();
+        for (var i = 0; i < 5; ++i) {
+            Path f = manager.accessFile("small" + i + "/a");
+            Files.writeString(f, "a".repeat(10));
+            small.add(f);
+            Thread.sleep(2);
+        }
+        Path big = manager.accessFile("big/a");
+        Files.writeString(big, "a".repeat(400));
+        //LRU would delete all the small entries before getting to the big one
+        //GDSF just deletes the big one, as that frees enough space on its own
+        manager.checkSpace();
+        Assertions.assertFalse(Files.exists(big));
+        for (var f : small) {
+            Assertions.assertTrue(Files.exists(f));
+        }
+    }
+
+    @Test
+    public void testLeasedEntriesAreNotEvicted() throws IOException, InterruptedException {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        Path f1;
+        try (var lease = manager.leaseFile("t1/a")) {
+            f1 = lease.path();
+            Files.writeString(f1, "a".repeat(300));
+            Thread.sleep(2);
+            Path f2 = manager.accessFile("t2/a");
+            Files.writeString(f2, "a".repeat(300));
+            manager.checkSpace();
+            //t1 is the least recently used, but it is leased so t2 is deleted instead
+            Assertions.assertTrue(Files.exists(f1));
+            Assertions.assertFalse(Files.exists(f2));
+            Files.writeString(manager.accessFile("t3/a"), "a".repeat(300));
+        }
+        manager.checkSpace();
+        Assertions.assertFalse(Files.exists(f1));
+    }
+
+    @Test
+    public void testBlobDeduplication() throws IOException {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        StorageManager central = manager.resolve("central");
+        StorageManager jboss = manager.resolve("jboss");
+        Path f1 = central.accessFile("a/test.jar");
+        Path f2 = jboss.accessFile("a/test.jar");
+        Path t1 = Files.writeString(Files.createTempFile(path, "download", ".part"), "contents");
+        Path t2 = Files.writeString(Files.createTempFile(path, "download", ".part"), "contents");
+        central.storeBlob(t1, "4a756ca07e9487f482465a99e8286abc86ba4dc7", f1);
+        jboss.storeBlob(t2, "4a756ca07e9487f482465a99e8286abc86ba4dc7", f2);
+        Assertions.assertEquals("contents", Files.readString(f1));
+        Assertions.assertEquals("contents", Files.readString(f2));
+        Assertions.assertFalse(Files.exists(t1));
+        Assertions.assertFalse(Files.exists(t2));
+        if (!RootStorageManager.supportsHardLinks(path)) {
+            return;
+        }
+        Assertions.assertTrue(Files.isSameFile(f1, f2));
+        Assertions.assertEquals(3, RootStorageManager.linkCount(f1));
+
+        central.delete("a");
+        manager.deleteOrphanedBlobs();
+        Assertions.assertEquals(2, RootStorageManager.linkCount(f2));
+        jboss.delete("a");
+        manager.deleteOrphanedBlobs();
+        try (var s = Files.list(manager.blobs.resolve("4a"))) {
+            Assertions.assertEquals(0, s.count());
+        }
+    }
+
+    @Test
+    public void testOnlyBlobsOfDeletedEntriesAreChecked() throws IOException {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        if (!RootStorageManager.supportsHardLinks(path)) {
+            return;
+        }
+        Path f1 = manager.accessFile("a/test.jar");
+        Path f2 = manager.accessFile("b/test.jar");
+        manager.storeBlob(Files.writeString(Files.createTempFile(path, "download", ".part"), "contents"),
+                "4a756ca07e9487f482465a99e8286abc86ba4dc7", f1);
+        manager.storeBlob(Files.writeString(Files.createTempFile(path, "download", ".part"), "other"),
+                "b8bd8d6dc1d7ef3e2e2c9e3a5cd5b0e9a1a1b7d5", f2);
+        //removed behind the storage managers back, so its blob is not a candidate
+        RootStorageManager.deleteRecursive(f2);
+        manager.delete("a");
+        Assertions.assertEquals(1, manager.orphanCandidates.size());
+        manager.deleteOrphanedBlobs();
+        Assertions.assertTrue(manager.orphanCandidates.isEmpty());
+        Assertions.assertFalse(Files.exists(manager.blobs.resolve("4a").resolve("4a756ca07e9487f482465a99e8286abc86ba4dc7")));
+        Path other = manager.blobs.resolve("b8").resolve("b8bd8d6dc1d7ef3e2e2c9e3a5cd5b0e9a1a1b7d5");
+        Assertions.assertTrue(Files.exists(other));
+        manager.sweepOrphanedBlobs();
+        Assertions.assertFalse(Files.exists(other));
+    }
+
+    @Test
+    public void testIndexPersistence() throws IOException {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        Files.writeString(manager.accessDirectory("t1").resolve("f1"), "0123456789");
+        Files.writeString(manager.accessDirectory("t2").resolve("f2"), "01234");
+        Files.writeString(manager.accessDirectory("t2/sub").resolve("f3"), "012");
+        manager.accessDirectory("t3");
+        manager.delete("t3");
+        manager.index.close();
+
+        //the journal is enough to find the entries, even before the sizes have been calculated
+        RootStorageManager loaded = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        loaded.loadIndex();
+        Assertions.assertEquals(Set.of("t1", "t2", "t2/sub"), loaded.inUseMap.keySet());
+
+        //reconciliation calculates the sizes and writes them to the index
+        loaded.initialLoad();
+        loaded.index.close();
+        loaded = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        loaded.loadIndex();
+        Assertions.assertEquals(Set.of("t1", "t2", "t2/sub"), loaded.inUseMap.keySet());
+        Assertions.assertTrue(loaded.inUseMap.get("t1").size >= 10);
+        Assertions.assertTrue(loaded.inUseMap.get("t2").size >= 5);
+        Assertions.assertTrue(loaded.inUseMap.get("t2").size < loaded.inUseMap.get("t1").size);
+
+        //entries that no longer exist are removed by reconciliation
+        RootStorageManager.deleteRecursive(path.resolve("t1"));
+        loaded.initialLoad();
+        Assertions.assertEquals(Set.of("t2", "t2/sub"), loaded.inUseMap.keySet());
+        loaded.index.close();
+
+        //without an index the cache directory is scanned
+        Files.delete(path.resolve(StorageIndex.INDEX_FILE));
+        loaded = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        loaded.loadIndex();
+        Assertions.assertTrue(loaded.inUseMap.isEmpty());
+        loaded.initialLoad();
+        Assertions.assertEquals(Set.of("t2", "t2/sub"), loaded.inUseMap.keySet());
+        Assertions.assertTrue(Files.exists(path.resolve(StorageIndex.INDEX_FILE)));
+    }
+
+    @Test
+    public void testIndexChangesDuringSnapshotAreKept() throws IOException {
+        Path path = Files.createTempDirectory("test");
+        StorageIndex index = new StorageIndex(path);
+        index.added("t1", 1, 10);
+        index.write(() -> {
+            //journaled after the snapshot was taken, but before it replaces the journal
+            index.added("t2", 2, 20);
+            index.removed("t1");
+            return Map.of("t1", new StorageIndex.Entry(1, 10));
+        });
+        index.close();
+        Assertions.assertEquals(Map.of("t2", new StorageIndex.Entry(2, 20)), index.load());
+    }
+
+    @Test
+    public void testPartialIndexRecordIsDiscarded() throws IOException {
+        Path path = Files.createTempDirectory("test");
+        StorageIndex index = new StorageIndex(path);
+        index.added("t1", 1, 10);
+        index.close();
+        //a record that was cut off part way through being written
+        Files.write(index.file, new byte[] { 'A', 0, 10, 't' }, StandardOpenOption.APPEND);
+        Assertions.assertEquals(Map.of("t1", new StorageIndex.Entry(1, 10)), index.load());
+
+        //new records go after the last complete one, rather than after the partial record
+        index.added("t2", 2, 20);
+        index.close();
+        Assertions.assertEquals(Map.of("t1", new StorageIndex.Entry(1, 10), "t2", new StorageIndex.Entry(2, 20)),
+                index.load());
+    }
+
+    @Test
+    public void testTryLeaseFile() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        //nothing is created for entries that are not in use
+        Assertions.assertNull(manager.tryLeaseFile("t1/a"));
+        Assertions.assertFalse(Files.exists(path.resolve("t1")));
+
+        Path file = manager.accessFile("t1/a");
+        try (var lease = manager.tryLeaseFile("t1/a")) {
+            Assertions.assertNotNull(lease);
+            Assertions.assertEquals(file, lease.path());
+            Assertions.assertEquals(1, manager.inUseMap.get("t1").leases.get());
+        }
+        Assertions.assertEquals(0, manager.inUseMap.get("t1").leases.get());
+
+        manager.delete("t1");
+        Assertions.assertNull(manager.tryLeaseFile("t1/a"));
+    }
+
+    @Test
+    public void testClearListeners() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        RootStorageManager manager = new RootStorageManager(new MockFileSystem(path, 1000L), path, 0.5, 0.4, 1);
+        List<String> cleared = new ArrayList<>();
+        manager.addClearListener(() -> cleared.add("root"));
+        manager.resolve("a").addClearListener(() -> cleared.add("a"));
+        manager.resolve("b").addClearListener(() -> cleared.add("b"));
+        manager.accessFile("a/f1");
+        manager.accessFile("b/f1");
+
+        manager.resolve("a").clear();
+        Assertions.assertEquals(List.of("a"), cleared);
+        cleared.clear();
+        manager.clear();
+        Assertions.assertEquals(List.of("root", "a", "b"), cleared);
+    }
+
     private static class MockFileSystem extends FileStore {
 
         final Path path;
@@ -107,6 +326,10 @@ public class StorageManagerTestCase {
             Files.walkFileTree(path, new SimpleFileVisitor<>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (file.getFileName().toString().equals(StorageIndex.INDEX_FILE)) {
+                        //the index is not part of the cached data, don't let it skew the numbers
+                        return super.visitFile(file, attrs);
+                    }
                     count.getAndAdd(Files.size(file));
                     return super.visitFile(file, attrs);
                 }
@@ -0,0 +1,58 @@
+package com.redhat.hacbs.artifactcache.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class StreamingDownloadTestCase {
+
+    static final byte[] DATA = "some data".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testFollowerOutlivesPartFile() throws Exception {
+        Path partFile = Files.createTempFile("download", ".part");
+        StreamingDownload streaming = new StreamingDownload(partFile);
+        streaming.started(new ArtifactResult(null, new ByteArrayInputStream(DATA), DATA.length, Optional.empty(),
+                Map.of()));
+        ArtifactResult follower = streaming.follower();
+        Assertions.assertNotNull(follower);
+
+        Files.write(partFile, DATA);
+        streaming.written(DATA.length);
+        streaming.finished(null);
+        streaming.seal();
+        Files.delete(partFile);
+
+        //the follower already has the file open, so it can still read it
+        try (InputStream in = follower.getData()) {
+            Assertions.assertArrayEquals(DATA, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testNoFollowerOnceFinished() throws Exception {
+        Path partFile = Files.createTempFile("download", ".part");
+        StreamingDownload streaming = new StreamingDownload(partFile);
+        //the executor runs the pump on the calling thread, so the part file is gone before anyone can follow it
+        streaming.start(Runnable::run, () -> {
+            streaming.started(new ArtifactResult(null, new ByteArrayInputStream(DATA), DATA.length, Optional.empty(),
+                    Map.of()));
+            streaming.written(DATA.length);
+            streaming.finished(null);
+            streaming.seal();
+            try {
+                Files.delete(partFile);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Assertions.assertNull(streaming.follower());
+    }
+}
@@ -0,0 +1,49 @@
+package com.redhat.hacbs.artifactcache.services.client.ociregistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TarIndexTestCase {
+
+    @Test
+    public void testReadEntriesFromTar() throws IOException {
+        Path dir = Files.createTempDirectory("test");
+        try (OutputStream out = Files.newOutputStream(dir.resolve(TarIndex.TAR));
+                TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            tar.putArchiveEntry(new TarArchiveEntry("./artifacts/"));
+            tar.closeArchiveEntry();
+            add(tar, "./artifacts/com/acme/foo/1.0/foo-1.0.jar", "jar contents");
+            add(tar, "./artifacts/com/acme/foo/1.0/foo-1.0.jar.sha1", "abc");
+            add(tar, "artifacts/com/acme/foo/1.0/foo-1.0.pom", "");
+        }
+        Assertions.assertFalse(TarIndex.exists(dir));
+        TarIndex.create(dir);
+        Assertions.assertTrue(TarIndex.exists(dir));
+
+        TarIndex index = TarIndex.load(dir);
+        var jar = index.get("artifacts/com/acme/foo/1.0/foo-1.0.jar").orElseThrow();
+        Assertions.assertEquals("jar contents", index.readString(jar));
+        Assertions.assertEquals(12, jar.size());
+        Assertions.assertEquals("abc",
+                index.readString(index.get("artifacts/com/acme/foo/1.0/foo-1.0.jar.sha1").orElseThrow()));
+        Assertions.assertEquals("", index.readString(index.get("artifacts/com/acme/foo/1.0/foo-1.0.pom").orElseThrow()));
+        Assertions.assertTrue(index.get("artifacts/").isEmpty());
+    }
+
+    private static void add(TarArchiveOutputStream tar, String name, String contents) throws IOException {
+        byte[] data = contents.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        tar.putArchiveEntry(entry);
+        tar.write(data);
+        tar.closeArchiveEntry();
+    }
+}
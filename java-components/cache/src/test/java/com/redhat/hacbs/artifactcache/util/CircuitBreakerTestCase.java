@@ -0,0 +1,53 @@
+package com.redhat.hacbs.artifactcache.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTestCase {
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+        Assertions.assertTrue(breaker.allow(0));
+        Assertions.assertFalse(breaker.failure(0));
+        Assertions.assertFalse(breaker.failure(0));
+        breaker.success();
+        Assertions.assertFalse(breaker.failure(0));
+        Assertions.assertFalse(breaker.failure(0));
+        Assertions.assertTrue(breaker.allow(0));
+        Assertions.assertTrue(breaker.failure(100));
+        Assertions.assertTrue(breaker.isOpen());
+        Assertions.assertFalse(breaker.allow(500));
+        Assertions.assertFalse(breaker.allow(1099));
+    }
+
+    @Test
+    public void testSingleTrialRequest() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        Assertions.assertTrue(breaker.failure(0));
+        //only one request is let through once the open time has passed
+        Assertions.assertTrue(breaker.allow(1000));
+        Assertions.assertFalse(breaker.allow(1000));
+        //the trial failed, so it opens again
+        Assertions.assertFalse(breaker.failure(1000));
+        Assertions.assertFalse(breaker.allow(1500));
+        Assertions.assertTrue(breaker.allow(2000));
+        Assertions.assertTrue(breaker.success());
+        Assertions.assertFalse(breaker.isOpen());
+        Assertions.assertTrue(breaker.allow(2000));
+        Assertions.assertTrue(breaker.allow(2000));
+    }
+
+    @Test
+    public void testAbortedTrialLetsAnotherThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        Assertions.assertTrue(breaker.failure(0));
+        Assertions.assertTrue(breaker.allow(1000));
+        Assertions.assertFalse(breaker.allow(1000));
+        //an aborted request neither closes nor re-opens the circuit
+        breaker.aborted();
+        Assertions.assertTrue(breaker.isOpen());
+        Assertions.assertTrue(breaker.allow(1000));
+        Assertions.assertTrue(breaker.success());
+    }
+}
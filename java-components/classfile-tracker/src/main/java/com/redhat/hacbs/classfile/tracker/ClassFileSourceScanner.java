@@ -0,0 +1,195 @@
+package com.redhat.hacbs.classfile.tracker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads the {@link ClassFileSourceAttribute} from a class file without parsing the whole class.
+ * <p>
+ * Only the constant pool offsets are recorded, the fields and methods are skipped over using their declared attribute
+ * lengths, and the class level attribute names are compared to the attribute name in place. Nothing is allocated unless
+ * the attribute is found, or the class name is needed for the untracked class listener. This produces the same results as
+ * running a {@link ClassTrackingReadDataVisitor} over the class, but is much cheaper when scanning large numbers of
+ * classes.
+ */
+final class ClassFileSourceScanner {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final byte[] ATTRIBUTE_NAME = ClassFileSourceAttribute.ATTRIBUTE_NAME.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The offsets of the constant pool entries, reused between classes to avoid an allocation per class
+     */
+    private static final ThreadLocal<int[]> CONSTANT_POOL_OFFSETS = ThreadLocal.withInitial(() -> new int[1024]);
+
+    private ClassFileSourceScanner() {
+    }
+
+    static TrackingData scan(byte[] classData, BiConsumer<String, byte[]> untrackedClassesListener) {
+        if (readInt(classData, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        int constantPoolCount = readUnsignedShort(classData, 8);
+        int[] offsets = CONSTANT_POOL_OFFSETS.get();
+        if (offsets.length < constantPoolCount) {
+            offsets = new int[constantPoolCount];
+            CONSTANT_POOL_OFFSETS.set(offsets);
+        }
+        int offset = 10;
+        for (int i = 1; i < constantPoolCount; ++i) {
+            offsets[i] = offset;
+            int tag = classData[offset];
+            switch (tag) {
+                case 1: //Utf8
+                    offset += 3 + readUnsignedShort(classData, offset + 1);
+                    break;
+                case 7: //Class
+                case 8: //String
+                case 16: //MethodType
+                case 19: //Module
+                case 20: //Package
+                    offset += 3;
+                    break;
+                case 15: //MethodHandle
+                    offset += 4;
+                    break;
+                case 3: //Integer
+                case 4: //Float
+                case 9: //Fieldref
+                case 10: //Methodref
+                case 11: //InterfaceMethodref
+                case 12: //NameAndType
+                case 17: //Dynamic
+                case 18: //InvokeDynamic
+                    offset += 5;
+                    break;
+                case 5: //Long
+                case 6: //Double
+                    //these take up two slots
+                    offset += 9;
+                    ++i;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        int thisClass = readUnsignedShort(classData, offset + 2);
+        offset += 6;
+        offset += 2 + 2 * readUnsignedShort(classData, offset);
+        //skip the fields and then the methods
+        for (int member = 0; member < 2; ++member) {
+            int count = readUnsignedShort(classData, offset);
+            offset += 2;
+            for (int i = 0; i < count; ++i) {
+                offset = skipAttributes(classData, offset + 6);
+            }
+        }
+        TrackingData result = null;
+        int attributeCount = readUnsignedShort(classData, offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; ++i) {
+            int name = readUnsignedShort(classData, offset);
+            int length = readInt(classData, offset + 2);
+            if (result == null && isAttributeName(classData, offsets[name])) {
+                //if it is present more than once the first one wins, the same as the visitor, as ClassReader visits the
+                //attributes in reverse order
+                result = readTrackingData(classData, offset + 6);
+            }
+            offset += 6 + length;
+        }
+        if (result == null && untrackedClassesListener != null) {
+            int nameOffset = offsets[readUnsignedShort(classData, offsets[thisClass] + 1)];
+            untrackedClassesListener.accept(readUtf(classData, nameOffset), classData);
+        }
+        return result;
+    }
+
+    private static int skipAttributes(byte[] classData, int offset) {
+        int count = readUnsignedShort(classData, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            offset += 6 + readInt(classData, offset + 2);
+        }
+        return offset;
+    }
+
+    private static boolean isAttributeName(byte[] classData, int utf8Offset) {
+        if (readUnsignedShort(classData, utf8Offset + 1) != ATTRIBUTE_NAME.length) {
+            return false;
+        }
+        int start = utf8Offset + 3;
+        for (int i = 0; i < ATTRIBUTE_NAME.length; ++i) {
+            if (classData[start + i] != ATTRIBUTE_NAME[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the attribute contents, in the format written by {@link ClassFileSourceAttribute}
+     */
+    private static TrackingData readTrackingData(byte[] classData, int offset) {
+        int version = classData[offset++];
+        if (version != ClassFileSourceAttribute.VERSION) {
+            throw new RuntimeException("Unknown version " + version);
+        }
+        int[] position = { offset };
+        String gav = readString(classData, position);
+        String source = readString(classData, position);
+        Map<String, String> attributes = new HashMap<>();
+        int attributeCount = readInt(classData, position[0]);
+        position[0] += 4;
+        for (int i = 0; i < attributeCount; ++i) {
+            String key = readString(classData, position);
+            String val = readString(classData, position);
+            attributes.put(key, val);
+        }
+        return new TrackingData(gav, source, attributes);
+    }
+
+    private static String readString(byte[] classData, int[] position) {
+        int length = readInt(classData, position[0]);
+        position[0] += 4;
+        if (length <= 0) {
+            return null;
+        }
+        String result = new String(classData, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return result;
+    }
+
+    /**
+     * Decodes a modified UTF-8 constant pool entry
+     */
+    private static String readUtf(byte[] classData, int utf8Offset) {
+        int length = readUnsignedShort(classData, utf8Offset + 1);
+        int offset = utf8Offset + 3;
+        int end = offset + length;
+        char[] chars = new char[length];
+        int count = 0;
+        while (offset < end) {
+            int b = classData[offset++];
+            if ((b & 0x80) == 0) {
+                chars[count++] = (char) (b & 0x7F);
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) + (classData[offset++] & 0x3F));
+            } else {
+                chars[count++] = (char) (((b & 0xF) << 12) + ((classData[offset++] & 0x3F) << 6)
+                        + (classData[offset++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
@@ -5,9 +5,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,7 +26,9 @@ import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.objectweb.asm.Attribute;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
@@ -28,6 +37,11 @@ public class ClassFileTracker {
 
     public static final Logger LOGGER = Logger.getLogger("dependency-analyser");
 
+    /**
+     * The maximum number of entries that can be waiting to be written while classes are being transformed
+     */
+    private static final int MAX_PENDING_ENTRIES = 256;
+
     public static byte[] addTrackingDataToClass(byte[] classData, TrackingData data, String name, boolean overwrite) {
         try {
             ClassReader classReader = new ClassReader(classData);
@@ -49,13 +63,7 @@ public class ClassFileTracker {
 
     public static TrackingData readTrackingInformationFromClass(byte[] classData,
             BiConsumer<String, byte[]> untrackedClassesListener) {
-        ClassReader classReader = new ClassReader(classData);
-        ClassTrackingReadDataVisitor classTrackingVisitor = new ClassTrackingReadDataVisitor(Opcodes.ASM9);
-        classReader.accept(classTrackingVisitor, new Attribute[] { new ClassFileSourceAttribute(null) }, 0);
-        if (classTrackingVisitor.getContents() == null && untrackedClassesListener != null) {
-            untrackedClassesListener.accept(classTrackingVisitor.getClassName(), classData);
-        }
-        return classTrackingVisitor.getContents();
+        return ClassFileSourceScanner.scan(classData, untrackedClassesListener);
     }
 
     public static byte[] addTrackingDataToJar(byte[] input, TrackingData data, boolean overwrite) throws IOException {
@@ -64,9 +72,17 @@ public class ClassFileTracker {
         return out.toByteArray();
     }
 
+    /**
+     * Adds tracking data to every class in the jar.
+     * <p>
+     * The classes are transformed in parallel on the common fork join pool, while the entries are written out in the same
+     * order they were read. Only a limited number of entries are buffered waiting to be written, and large entries
+     * (including nested jars) are spilled to disk rather than held on the heap, see {@link SpillBuffer}.
+     */
     public static void addTrackingDataToJar(InputStream input, TrackingData data, OutputStream out, boolean overwrite)
             throws IOException, ZipException {
         Set<String> seen = new HashSet<>();
+        Deque<PendingEntry> pending = new ArrayDeque<>();
         try (ZipInputStream zipIn = new ZipInputStream(input)) {
             try (ZipOutputStream zipOut = new ZipOutputStream(out)) {
                 var entry = zipIn.getNextEntry();
@@ -74,38 +90,177 @@ public class ClassFileTracker {
                     if (!seen.contains(entry.getName())) {
                         seen.add(entry.getName());
                         if (entry.getName().endsWith(".class")) {
-                            ZipEntry newEntry = new ZipEntry(entry.getName());
-                            if (entry.getLastAccessTime() != null) {
-                                newEntry.setLastAccessTime(entry.getLastAccessTime());
-                            }
-                            if (entry.getLastModifiedTime() != null) {
-                                newEntry.setLastModifiedTime(entry.getLastModifiedTime());
-                            }
-                            byte[] modified = addTrackingDataToClass(zipIn.readAllBytes(), data, entry.getName(), overwrite);
-                            newEntry.setSize(modified.length);
-                            zipOut.putNextEntry(newEntry);
-                            zipOut.write(modified);
+                            ZipEntry newEntry = copyTimes(entry, new ZipEntry(entry.getName()));
+                            byte[] classData = zipIn.readAllBytes();
+                            String name = entry.getName();
+                            pending.add(new PendingEntry(newEntry, null, ForkJoinPool.commonPool()
+                                    .submit(() -> addTrackingDataToClass(classData, data, name, overwrite))));
                         } else if (entry.getName().endsWith(".jar")) {
-                            ZipEntry newEntry = new ZipEntry(entry.getName());
-                            if (entry.getLastAccessTime() != null) {
-                                newEntry.setLastAccessTime(entry.getLastAccessTime());
-                            }
-                            if (entry.getLastModifiedTime() != null) {
-                                newEntry.setLastModifiedTime(entry.getLastModifiedTime());
-                            }
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            addTrackingDataToJar(new NoCloseInputStream(zipIn), data, baos, overwrite);
-                            byte[] modified = baos.toByteArray();
-                            newEntry.setSize(modified.length);
-                            zipOut.putNextEntry(newEntry);
-                            zipOut.write(modified);
+                            ZipEntry newEntry = copyTimes(entry, new ZipEntry(entry.getName()));
+                            SpillBuffer modified = new SpillBuffer();
+                            pending.add(new PendingEntry(newEntry, modified, null));
+                            addTrackingDataToJar(new NoCloseInputStream(zipIn), data, modified, overwrite);
+                            newEntry.setSize(modified.size());
                         } else if (!isBlockOrSF(entry.getName())) {
-                            zipOut.putNextEntry(entry);
-                            zipOut.write(zipIn.readAllBytes());
+                            SpillBuffer contents = new SpillBuffer();
+                            pending.add(new PendingEntry(entry, contents, null));
+                            zipIn.transferTo(contents);
                         }
+                        writePending(zipOut, pending, MAX_PENDING_ENTRIES);
                     }
                     entry = zipIn.getNextEntry();
                 }
+                writePending(zipOut, pending, 0);
+            }
+        } finally {
+            for (var i : pending) {
+                i.discard();
+            }
+        }
+    }
+
+    /**
+     * Adds tracking data to every class in the jar file.
+     * <p>
+     * This works the same way as {@link #addTrackingDataToJar(InputStream, TrackingData, OutputStream, boolean)}, however
+     * because the file can be read randomly the entries that are not modified are copied across in their compressed form,
+     * rather than being inflated and deflated again. Only the modified classes and nested jars are compressed.
+     */
+    public static void addTrackingDataToJar(Path input, TrackingData data, OutputStream out, boolean overwrite)
+            throws IOException {
+        Set<String> seen = new HashSet<>();
+        Deque<PendingArchiveEntry> pending = new ArrayDeque<>();
+        try (ZipFile zipFile = new ZipFile(FileChannel.open(input, StandardOpenOption.READ));
+                ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(out)) {
+            for (var entries = zipFile.getEntriesInPhysicalOrder(); entries.hasMoreElements();) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (!seen.add(entry.getName())) {
+                    continue;
+                }
+                if (entry.getName().endsWith(".class")) {
+                    byte[] classData;
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        classData = in.readAllBytes();
+                    }
+                    String name = entry.getName();
+                    pending.add(new PendingArchiveEntry(copyTimes(entry, new ZipArchiveEntry(name)), null,
+                            ForkJoinPool.commonPool().submit(() -> addTrackingDataToClass(classData, data, name, overwrite))));
+                } else if (entry.getName().endsWith(".jar")) {
+                    SpillBuffer modified = new SpillBuffer();
+                    pending.add(new PendingArchiveEntry(copyTimes(entry, new ZipArchiveEntry(entry.getName())), modified,
+                            null));
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        addTrackingDataToJar(in, data, modified, overwrite);
+                    }
+                } else if (!isBlockOrSF(entry.getName())) {
+                    //copied as is when it is written
+                    pending.add(new PendingArchiveEntry(entry, null, null));
+                }
+                writePending(zipFile, zipOut, pending, MAX_PENDING_ENTRIES);
+            }
+            writePending(zipFile, zipOut, pending, 0);
+        } finally {
+            for (var i : pending) {
+                i.discard();
+            }
+        }
+    }
+
+    private static void writePending(ZipFile zipFile, ZipArchiveOutputStream zipOut, Deque<PendingArchiveEntry> pending,
+            int maxPending) throws IOException {
+        while (!pending.isEmpty()) {
+            PendingArchiveEntry head = pending.peek();
+            if (head.task() != null && !head.task().isDone() && pending.size() <= maxPending) {
+                return;
+            }
+            pending.poll();
+            if (head.task() == null && head.data() == null) {
+                try (InputStream raw = zipFile.getRawInputStream(head.entry())) {
+                    zipOut.addRawArchiveEntry(head.entry(), raw);
+                }
+                continue;
+            }
+            if (head.task() != null) {
+                byte[] contents = head.task().join();
+                head.entry().setSize(contents.length);
+                zipOut.putArchiveEntry(head.entry());
+                zipOut.write(contents);
+            } else {
+                //it is no longer pending, so it has to be released here even if the write fails
+                try {
+                    head.entry().setSize(head.data().size());
+                    zipOut.putArchiveEntry(head.entry());
+                    head.data().writeTo(zipOut);
+                } finally {
+                    head.data().release();
+                }
+            }
+            zipOut.closeArchiveEntry();
+        }
+    }
+
+    /**
+     * Writes out entries from the head of the queue that are ready, and waits for entries if there are more than the
+     * given number pending.
+     */
+    private static void writePending(ZipOutputStream zipOut, Deque<PendingEntry> pending, int maxPending)
+            throws IOException {
+        while (!pending.isEmpty()) {
+            PendingEntry head = pending.peek();
+            if (head.task() != null && !head.task().isDone() && pending.size() <= maxPending) {
+                return;
+            }
+            pending.poll();
+            if (head.task() != null) {
+                byte[] contents = head.task().join();
+                head.entry().setSize(contents.length);
+                zipOut.putNextEntry(head.entry());
+                zipOut.write(contents);
+            } else {
+                try {
+                    zipOut.putNextEntry(head.entry());
+                    head.data().writeTo(zipOut);
+                } finally {
+                    head.data().release();
+                }
+            }
+        }
+    }
+
+    private static <T extends ZipEntry> T copyTimes(ZipEntry from, T to) {
+        if (from.getLastAccessTime() != null) {
+            to.setLastAccessTime(from.getLastAccessTime());
+        }
+        if (from.getLastModifiedTime() != null) {
+            to.setLastModifiedTime(from.getLastModifiedTime());
+        }
+        return to;
+    }
+
+    /**
+     * An entry waiting to be written, either with its contents or with the task that is transforming them.
+     */
+    private record PendingEntry(ZipEntry entry, SpillBuffer data, ForkJoinTask<byte[]> task) {
+
+        void discard() {
+            if (task != null) {
+                task.cancel(false);
+            } else {
+                data.release();
+            }
+        }
+    }
+
+    /**
+     * An entry waiting to be written to an archive. If there are no contents and no task it is copied from the original.
+     */
+    private record PendingArchiveEntry(ZipArchiveEntry entry, SpillBuffer data, ForkJoinTask<byte[]> task) {
+
+        void discard() {
+            if (task != null) {
+                task.cancel(false);
+            } else if (data != null) {
+                data.release();
             }
         }
     }
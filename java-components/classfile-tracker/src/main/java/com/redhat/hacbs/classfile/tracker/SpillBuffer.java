@@ -0,0 +1,144 @@
+package com.redhat.hacbs.classfile.tracker;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A buffer that is held in memory until the memory budget runs out, and is then spilled to a temporary file.
+ * <p>
+ * This is used for nested jars and other entries that need to be buffered while an archive is being rewritten, so the
+ * heap needed does not depend on the size of the archive or how deeply it is nested. The budget is shared by all the
+ * buffers that are in use, so many pending entries can't add up to more than it. It can be set with the
+ * {@value #THRESHOLD_PROPERTY} system property.
+ * <p>
+ * Closing the buffer only finishes writing, {@link #release()} must be called to delete the temporary file.
+ */
+final class SpillBuffer extends OutputStream {
+
+    static final String THRESHOLD_PROPERTY = "hacbs.classfile-tracker.in-memory-threshold";
+    static final int DEFAULT_THRESHOLD = 16 * 1024 * 1024;
+
+    /**
+     * The number of bytes held in memory by all buffers
+     */
+    private static final AtomicLong IN_MEMORY = new AtomicLong();
+    private static final AtomicLong SPILLS = new AtomicLong();
+
+    private final int threshold;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+    private long size;
+
+    SpillBuffer() {
+        this(Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+    }
+
+    SpillBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (memory != null && !reserve(len)) {
+            file = Files.createTempFile("classfile-tracker", ".spill");
+            fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+            memory.writeTo(fileOut);
+            IN_MEMORY.addAndGet(-memory.size());
+            memory = null;
+            SPILLS.incrementAndGet();
+        }
+        if (memory != null) {
+            memory.write(b, off, len);
+        } else {
+            fileOut.write(b, off, len);
+        }
+        size += len;
+    }
+
+    /**
+     * Takes the given number of bytes from the shared budget
+     *
+     * @return false if there is not enough left
+     */
+    private boolean reserve(int len) {
+        while (true) {
+            long current = IN_MEMORY.get();
+            if (current + len > threshold) {
+                return false;
+            }
+            if (IN_MEMORY.compareAndSet(current, current + len)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The number of bytes held in memory by all buffers that have not been released
+     */
+    static long inMemory() {
+        return IN_MEMORY.get();
+    }
+
+    /**
+     * The number of buffers that have been spilled to disk
+     */
+    static long spills() {
+        return SPILLS.get();
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Writes the contents of the buffer to the given stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (memory != null) {
+            memory.writeTo(out);
+        } else {
+            fileOut.flush();
+            Files.copy(file, out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    /**
+     * Discards the contents of the buffer, deleting the temporary file if there is one.
+     */
+    void release() {
+        if (memory != null) {
+            IN_MEMORY.addAndGet(-memory.size());
+        }
+        memory = null;
+        if (file != null) {
+            try {
+                fileOut.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                ClassFileTracker.LOGGER.warning("Failed to delete " + file + ": " + e);
+            }
+        }
+    }
+}
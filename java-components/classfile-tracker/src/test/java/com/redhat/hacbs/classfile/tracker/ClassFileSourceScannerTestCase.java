@@ -0,0 +1,84 @@
+package com.redhat.hacbs.classfile.tracker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+public class ClassFileSourceScannerTestCase {
+
+    static final TrackingData DATA = new TrackingData("com.acme:acme:1.0", "rebuilt",
+            Map.of("scm-uri", "https://github.com/acme/acme.git", "hermetic", "true"));
+    static final TrackingData OTHER_DATA = new TrackingData("com.acme:other:1.0", "central", Map.of());
+
+    @Test
+    public void testScannerMatchesVisitor() throws Exception {
+        List<byte[]> classes = new ArrayList<>();
+        for (var c : List.of(getClass(), String.class, Map.class, ClassFileTracker.class, TrackingData.class)) {
+            try (var in = c.getResourceAsStream("/" + c.getName().replace(".", "/") + ".class")) {
+                classes.add(in.readAllBytes());
+            }
+        }
+        for (var i : List.copyOf(classes)) {
+            classes.add(ClassFileTracker.addTrackingDataToClass(i, DATA, "test", true));
+        }
+        for (var i : classes) {
+            ClassReader classReader = new ClassReader(i);
+            ClassTrackingReadDataVisitor visitor = new ClassTrackingReadDataVisitor(Opcodes.ASM9);
+            classReader.accept(visitor, new Attribute[] { new ClassFileSourceAttribute(null) }, 0);
+
+            List<String> untracked = new ArrayList<>();
+            TrackingData scanned = ClassFileSourceScanner.scan(i, (name, data) -> untracked.add(name));
+            Assertions.assertEquals(visitor.getContents(), scanned);
+            Assertions.assertEquals(visitor.getContents() == null ? List.of(visitor.getClassName()) : List.of(), untracked);
+        }
+    }
+
+    @Test
+    public void testDuplicateAttributeFirstWins() throws Exception {
+        byte[] classData;
+        //not this class, the gavs are in its constant pool which would throw off the search below
+        try (var in = TrackingData.class.getResourceAsStream(TrackingData.class.getSimpleName() + ".class")) {
+            classData = in.readAllBytes();
+        }
+        ClassWriter writer = new ClassWriter(0);
+        new ClassReader(classData).accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public void visitEnd() {
+                visitAttribute(new ClassFileSourceAttribute(DATA));
+                visitAttribute(new ClassFileSourceAttribute(OTHER_DATA));
+                super.visitEnd();
+            }
+        }, 0);
+        byte[] duplicated = writer.toByteArray();
+
+        //work out which one ended up first in the class file
+        int dataOffset = indexOf(duplicated, DATA.gav.getBytes(StandardCharsets.UTF_8));
+        int otherOffset = indexOf(duplicated, OTHER_DATA.gav.getBytes(StandardCharsets.UTF_8));
+        Assertions.assertTrue(dataOffset > 0 && otherOffset > 0);
+        TrackingData first = dataOffset < otherOffset ? DATA : OTHER_DATA;
+
+        ClassTrackingReadDataVisitor visitor = new ClassTrackingReadDataVisitor(Opcodes.ASM9);
+        new ClassReader(duplicated).accept(visitor, new Attribute[] { new ClassFileSourceAttribute(null) }, 0);
+        Assertions.assertEquals(first, visitor.getContents());
+        Assertions.assertEquals(first, ClassFileSourceScanner.scan(duplicated, null));
+    }
+
+    private static int indexOf(byte[] data, byte[] search) {
+        for (int i = 0; i <= data.length - search.length; ++i) {
+            if (Arrays.equals(data, i, i + search.length, search, 0, search.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,9 +1,18 @@
 package com.redhat.hacbs.classfile.tracker;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.jar.JarEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.junit.jupiter.api.Assertions;
@@ -37,4 +46,146 @@ public class ClassTrackingModificationTestCase {
         var results = ClassFileTracker.addTrackingDataToJar(out.toByteArray(), DATA, true);
         Assertions.assertEquals(Collections.singleton(DATA), ClassFileTracker.readTrackingDataFromJar(results, "test.jar"));
     }
+
+    @Test
+    public void testJarEntryOrderIsPreserved() throws Exception {
+        byte[] thisClass = getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            String name = i % 3 == 0 ? "resource" + i + ".txt" : "com/acme/Class" + i + ".class";
+            names.add(name);
+            zip.putNextEntry(new JarEntry(name));
+            zip.write(i % 3 == 0 ? name.getBytes(StandardCharsets.UTF_8) : thisClass);
+        }
+        zip.close();
+
+        var results = ClassFileTracker.addTrackingDataToJar(out.toByteArray(), DATA, true);
+        List<String> resultNames = new ArrayList<>();
+        try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(results))) {
+            for (var entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
+                resultNames.add(entry.getName());
+                if (entry.getName().endsWith(".txt")) {
+                    Assertions.assertEquals(entry.getName(), new String(zipIn.readAllBytes(), StandardCharsets.UTF_8));
+                } else {
+                    Assertions.assertEquals(DATA, ClassFileTracker.readTrackingInformationFromClass(zipIn.readAllBytes()));
+                }
+            }
+        }
+        Assertions.assertEquals(names, resultNames);
+    }
+
+    @Test
+    public void testBytecodeJarFileTracking() throws Exception {
+        byte[] thisClass = getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes();
+        Path jar = Files.createTempFile("test", ".jar");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            zip.putNextEntry(new JarEntry("META-INF/resource.txt"));
+            zip.write("resource".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new JarEntry("META-INF/SIGNER.SF"));
+            zip.write("signature".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new JarEntry(getClass().getName().replace(".", "/") + ".class"));
+            zip.write(thisClass);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ClassFileTracker.addTrackingDataToJar(jar, DATA, out, true);
+        Assertions.assertEquals(Collections.singleton(DATA),
+                ClassFileTracker.readTrackingDataFromJar(out.toByteArray(), "test.jar"));
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (var entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
+                names.add(entry.getName());
+                if (entry.getName().endsWith(".txt")) {
+                    Assertions.assertEquals("resource", new String(zipIn.readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        Assertions.assertEquals(List.of("META-INF/resource.txt", getClass().getName().replace(".", "/") + ".class"), names);
+        Files.delete(jar);
+    }
+
+    @Test
+    public void testNestedJarsSpilledToDisk() throws Exception {
+        byte[] thisClass = getClass().getResourceAsStream(getClass().getSimpleName() + ".class").readAllBytes();
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(inner)) {
+            zip.putNextEntry(new JarEntry(getClass().getName().replace(".", "/") + ".class"));
+            zip.write(thisClass);
+            zip.putNextEntry(new JarEntry("large.txt"));
+            zip.write(new byte[10000]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new JarEntry("lib/inner.jar"));
+            zip.write(inner.toByteArray());
+        }
+
+        System.setProperty(SpillBuffer.THRESHOLD_PROPERTY, "1024");
+        try {
+            long spills = SpillBuffer.spills();
+            var results = ClassFileTracker.addTrackingDataToJar(out.toByteArray(), DATA, true);
+            Assertions.assertEquals(Collections.singleton(DATA), ClassFileTracker.readTrackingDataFromJar(results, "test.jar"));
+            Assertions.assertTrue(SpillBuffer.spills() > spills, "Nested jar was not spilled");
+            Assertions.assertEquals(0, SpillBuffer.inMemory());
+        } finally {
+            System.clearProperty(SpillBuffer.THRESHOLD_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testSpillBudgetIsShared() throws Exception {
+        SpillBuffer first = new SpillBuffer(1000);
+        SpillBuffer second = new SpillBuffer(1000);
+        try {
+            first.write(new byte[600]);
+            Assertions.assertFalse(first.isSpilled());
+            //each buffer is under the threshold, but together they are over it
+            second.write(new byte[600]);
+            Assertions.assertTrue(second.isSpilled());
+            Assertions.assertFalse(first.isSpilled());
+            Assertions.assertEquals(600, SpillBuffer.inMemory());
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            second.writeTo(contents);
+            Assertions.assertEquals(600, contents.size());
+        } finally {
+            first.release();
+            second.release();
+        }
+        Assertions.assertEquals(0, SpillBuffer.inMemory());
+    }
+
+    @Test
+    public void testBufferReleasedWhenWriteFails() throws Exception {
+        ByteArrayOutputStream inner = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(inner)) {
+            zip.putNextEntry(new JarEntry("data.txt"));
+            zip.write(new byte[600]);
+        }
+        //nested jars are buffered by both the stream and the file versions
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new JarEntry("lib/inner.jar"));
+            zip.write(inner.toByteArray());
+        }
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("write failed");
+            }
+        };
+        Assertions.assertThrows(IOException.class,
+                () -> ClassFileTracker.addTrackingDataToJar(new ByteArrayInputStream(out.toByteArray()), DATA, failing, true));
+        Assertions.assertEquals(0, SpillBuffer.inMemory());
+
+        Path jar = Files.createTempFile("test", ".jar");
+        try {
+            Files.write(jar, out.toByteArray());
+            Assertions.assertThrows(IOException.class, () -> ClassFileTracker.addTrackingDataToJar(jar, DATA, failing, true));
+            Assertions.assertEquals(0, SpillBuffer.inMemory());
+        } finally {
+            Files.delete(jar);
+        }
+    }
 }
@@ -0,0 +1,199 @@
+package com.redhat.hacbs.resources.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipes a blob from something that writes it (e.g. a registry blob) to something that reads it (e.g. a gzip or tar
+ * decoder), without writing it to a temporary file first.
+ * <p>
+ * The writer runs on a background thread and the data passes through a bounded in memory buffer, so the writer blocks
+ * if the reader falls behind. The SHA-256 of the data is calculated as it passes through.
+ * <p>
+ * Decoders often stop reading before the end of the raw data, so the digest is only known to be correct once
+ * {@link #verify()} has returned. The result must not be treated as complete before then.
+ */
+public final class BlobPipe extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private boolean spooled;
+
+    private BlobPipe(InputStream in) {
+        super(in);
+    }
+
+    public interface Writer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Runs the writer on the executor and returns a stream of what it writes.
+     * <p>
+     * If the writer fails, or the data does not match the expected digest, then the stream throws an exception at the
+     * point it would have returned end of stream, and {@link #verify()} throws it as well, so a reader never sees a
+     * truncated or corrupt blob as complete.
+     * <p>
+     * If the executor runs the writer on the calling thread (e.g. because its pool is full) then the blob can't be
+     * piped, so it is written to a temporary file and verified before this returns.
+     *
+     * @param executor The executor to run the writer on
+     * @param writer The writer
+     * @param expectedSha256 The expected SHA-256 as hex, or null if it should not be checked
+     */
+    public static BlobPipe open(Executor executor, Writer writer, String expectedSha256) throws IOException {
+        PipedInputStream in = new PipedInputStream(BUFFER_SIZE);
+        PipedOutputStream out = new PipedOutputStream(in);
+        BlobPipe pipe = new BlobPipe(in);
+        Thread caller = Thread.currentThread();
+        executor.execute(() -> {
+            if (Thread.currentThread() == caller) {
+                pipe.spool(writer, expectedSha256);
+                return;
+            }
+            try {
+                write(writer, out, expectedSha256);
+            } catch (IOException e) {
+                pipe.failure.set(e);
+            } finally {
+                //the failure must be set before this, so the reader sees it when it gets to the end
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                pipe.done.countDown();
+            }
+        });
+        if (pipe.spooled) {
+            //the blob has already been written and checked, so any failure can be reported now
+            try {
+                pipe.checkFailure();
+            } catch (IOException e) {
+                pipe.close();
+                throw e;
+            }
+        }
+        return pipe;
+    }
+
+    /**
+     * Writes the blob to a temporary file on the current thread, and reads from that instead of the pipe.
+     */
+    private void spool(Writer writer, String expectedSha256) {
+        spooled = true;
+        try {
+            in.close();
+            Path file = Files.createTempFile("blob", ".spool");
+            try (OutputStream out = Files.newOutputStream(file)) {
+                in = Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+                write(writer, out, expectedSha256);
+            }
+        } catch (IOException e) {
+            failure.set(e);
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private static void write(Writer writer, OutputStream out, String expectedSha256) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try {
+            writer.writeTo(new DigestOutputStream(out, md));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        if (expectedSha256 != null) {
+            String actual = hex(md.digest());
+            if (!actual.equalsIgnoreCase(expectedSha256)) {
+                throw new IOException(
+                        "Blob digest mismatch, expected sha256:" + expectedSha256 + " but was sha256:" + actual);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] data = new byte[1];
+        int r = read(data, 0, 1);
+        return r == -1 ? -1 : data[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int r;
+        try {
+            r = super.read(b, off, len);
+        } catch (IOException e) {
+            checkFailure();
+            throw e;
+        }
+        if (r == -1) {
+            awaitWriter();
+            checkFailure();
+        }
+        return r;
+    }
+
+    /**
+     * Reads any data that is left to the end, waits for the writer to finish, and checks that the blob was complete and
+     * matched its digest.
+     *
+     * @throws IOException if the writer failed or the digest did not match
+     */
+    public void verify() throws IOException {
+        byte[] buffer = new byte[8192];
+        while (read(buffer, 0, buffer.length) != -1) {
+            //discard the rest
+        }
+        awaitWriter();
+        checkFailure();
+    }
+
+    private void awaitWriter() throws IOException {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for blob writer");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure.get();
+        if (e != null) {
+            throw new IOException("Failed to read blob: " + e.getMessage(), e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < digest.length; ++i) {
+            sb.append(Integer.toHexString((digest[i] & 0xFF) | 0x100).substring(1, 3));
+        }
+        return sb.toString();
+    }
+}